@@ -0,0 +1,126 @@
+/*
+ * Copyright © 2021 TongZhen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package file.sync.tool;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 流水线相邻两个阶段之间的有界缓冲区队列
+ * <p>
+ * 缓冲区数量固定，生产方取空闲缓冲区填充后放入队列，消费方取出处理后归还，
+ * 缓冲区用完时生产方等待消费方，从而限制在途数据量。
+ * 任何一方出错时把异常放入两个方向，另一方在下次等待时收到异常
+ *
+ * @author shouchen
+ */
+class BufferQueue<T> {
+	private static final Object END = new Object();
+	private final BlockingQueue<Object> free;
+	private final BlockingQueue<Object> filled;
+
+	/**
+	 * @param buffers 全部缓冲区
+	 */
+	BufferQueue(List<T> buffers) {
+		// 多留一个位置，保证结束标记和异常总能放入
+		this.free = new ArrayBlockingQueue<>(buffers.size() + 1);
+		this.filled = new ArrayBlockingQueue<>(buffers.size() + 1);
+		this.free.addAll(buffers);
+	}
+
+	/**
+	 * 生产方取一个空闲缓冲区，没有时等待
+	 *
+	 * @return 缓冲区
+	 * @throws IOException 消费方出错
+	 */
+	T obtain() throws IOException {
+		return cast(await(free));
+	}
+
+	/**
+	 * 生产方放入填充好的缓冲区
+	 *
+	 * @param buffer 缓冲区
+	 */
+	void put(T buffer) {
+		filled.add(buffer);
+	}
+
+	/**
+	 * 生产方标记数据结束
+	 */
+	void end() {
+		filled.add(END);
+	}
+
+	/**
+	 * 消费方取一个填充好的缓冲区，没有时等待
+	 *
+	 * @return 缓冲区，数据结束时返回null
+	 * @throws IOException 生产方出错
+	 */
+	T take() throws IOException {
+		Object item = await(filled);
+		return item == END ? null : cast(item);
+	}
+
+	/**
+	 * 消费方归还处理完的缓冲区
+	 *
+	 * @param buffer 缓冲区
+	 */
+	void release(T buffer) {
+		free.add(buffer);
+	}
+
+	/**
+	 * 通知另一方出错
+	 *
+	 * @param e 异常
+	 */
+	void fail(Throwable e) {
+		free.offer(e);
+		filled.offer(e);
+	}
+
+	private static Object await(BlockingQueue<Object> queue) throws IOException {
+		Object item;
+		try {
+			item = queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		if (item instanceof Throwable) {
+			// 留给之后的等待者
+			queue.offer(item);
+			Throwable e = (Throwable) item;
+			throw e instanceof IOException ? (IOException) e : new IOException(e);
+		}
+		return item;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T cast(Object item) {
+		return (T) item;
+	}
+}
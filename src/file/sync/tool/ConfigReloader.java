@@ -0,0 +1,83 @@
+/*
+ * Copyright © 2021 TongZhen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package file.sync.tool;
+
+import java.util.function.Consumer;
+
+/**
+ * 配置文件重新加载
+ * <p>
+ * 后台线程定期检查配置文件的修改时间，文件被修改后重新读取正在使用的配置，
+ * 检验通过后交给回调。只有带宽上限可以在运行期间调整，其他配置的修改在重新启动后生效
+ *
+ * @author shouchen
+ */
+class ConfigReloader {
+	/**
+	 * 检查配置文件的间隔，毫秒
+	 */
+	private static final long CHECK_INTERVAL = 5000;
+	private final String id;
+	private final Consumer<FileSyncConfig> listener;
+	private long lastModified;
+
+	private ConfigReloader(String id, Consumer<FileSyncConfig> listener) {
+		this.id = id;
+		this.listener = listener;
+		this.lastModified = FileSyncConfig.configFileModified();
+	}
+
+	/**
+	 * 启动后台检查线程，进程退出时自动结束
+	 *
+	 * @param id       配置编号
+	 * @param listener 配置修改后的回调
+	 */
+	static void start(String id, Consumer<FileSyncConfig> listener) {
+		ConfigReloader reloader = new ConfigReloader(id, listener);
+		Thread thread = new Thread(reloader::run, "config-reload");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void run() {
+		while (true) {
+			try {
+				Thread.sleep(CHECK_INTERVAL);
+			} catch (InterruptedException e) {
+				return;
+			}
+			long modified = FileSyncConfig.configFileModified();
+			if (modified == lastModified) {
+				continue;
+			}
+			lastModified = modified;
+			FileSyncConfig config = FileSyncConfig.reloadConfig(id);
+			if (config == null) {
+				Logger.warn("配置文件中找不到配置 " + id + "，忽略本次修改");
+				continue;
+			}
+			try {
+				config.checkConfig();
+			} catch (Exception e) {
+				Logger.warn("配置错误，忽略本次修改：" + e.getMessage());
+				continue;
+			}
+			listener.accept(config);
+		}
+	}
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright © 2021 TongZhen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package file.sync.tool;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 文件内容哈希
+ * <p>
+ * 默认使用SHA-256；双方协商启用快速哈希后使用MurmurHash3 x64 128位，
+ * 速度快得多但不抗碰撞，只适合在可信环境中检测文件变化。
+ * 不同算法的哈希值不能互相比较，文件索引分别记录每种算法的结果
+ *
+ * @author shouchen
+ */
+abstract class ContentHash {
+	/**
+	 * SHA-256
+	 */
+	static final int SHA256 = 0;
+	/**
+	 * MurmurHash3 x64 128位
+	 */
+	static final int MURMUR3_128 = 1;
+	/**
+	 * 算法数量
+	 */
+	static final int ALGORITHM_COUNT = 2;
+
+	/**
+	 * @param algorithm 算法编号
+	 * @return 新的哈希对象
+	 */
+	static ContentHash newInstance(int algorithm) {
+		switch (algorithm) {
+			case SHA256:
+				return new Sha256();
+			case MURMUR3_128:
+				return new Murmur3();
+			default:
+				throw new IllegalArgumentException("未知的哈希算法 " + algorithm);
+		}
+	}
+
+	/**
+	 * @param algorithm 算法编号
+	 * @return 算法名称
+	 */
+	static String name(int algorithm) {
+		return algorithm == MURMUR3_128 ? "MurmurHash3-128" : "SHA-256";
+	}
+
+	abstract void update(byte[] buf, int off, int len);
+
+	abstract void update(ByteBuffer buf);
+
+	/**
+	 * 计算哈希值并重置状态
+	 *
+	 * @return 哈希值
+	 */
+	abstract byte[] digest();
+
+	abstract void reset();
+
+	private static class Sha256 extends ContentHash {
+		private final MessageDigest messageDigest;
+
+		private Sha256() {
+			try {
+				messageDigest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		void update(byte[] buf, int off, int len) {
+			messageDigest.update(buf, off, len);
+		}
+
+		@Override
+		void update(ByteBuffer buf) {
+			messageDigest.update(buf);
+		}
+
+		@Override
+		byte[] digest() {
+			return messageDigest.digest();
+		}
+
+		@Override
+		void reset() {
+			messageDigest.reset();
+		}
+	}
+
+	/**
+	 * MurmurHash3 x64 128位的流式实现，种子为0，结果与参考实现一致
+	 */
+	private static class Murmur3 extends ContentHash {
+		private static final long C1 = 0x87c37b91114253d5L;
+		private static final long C2 = 0x4cf5ad432745937fL;
+		private static final int BLOCK_SIZE = 16;
+		private final byte[] tail = new byte[BLOCK_SIZE];
+		private int tailLen;
+		private long h1;
+		private long h2;
+		private long length;
+
+		@Override
+		void update(byte[] buf, int off, int len) {
+			update(ByteBuffer.wrap(buf, off, len));
+		}
+
+		@Override
+		void update(ByteBuffer buf) {
+			ByteBuffer input = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+			if (tailLen > 0) {
+				int n = Math.min(input.remaining(), BLOCK_SIZE - tailLen);
+				input.get(tail, tailLen, n);
+				tailLen += n;
+				length += n;
+				if (tailLen < BLOCK_SIZE) {
+					buf.position(buf.limit());
+					return;
+				}
+				ByteBuffer block = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+				block(block.getLong(), block.getLong());
+				tailLen = 0;
+			}
+			int blocks = input.remaining() / BLOCK_SIZE;
+			for (int i = 0; i < blocks; i++) {
+				block(input.getLong(), input.getLong());
+			}
+			length += (long) blocks * BLOCK_SIZE;
+			int remaining = input.remaining();
+			input.get(tail, 0, remaining);
+			tailLen = remaining;
+			length += remaining;
+			buf.position(buf.limit());
+		}
+
+		@Override
+		byte[] digest() {
+			long k1 = 0;
+			long k2 = 0;
+			for (int i = tailLen - 1; i >= 8; i--) {
+				k2 = k2 << 8 | (tail[i] & 0xffL);
+			}
+			for (int i = Math.min(tailLen, 8) - 1; i >= 0; i--) {
+				k1 = k1 << 8 | (tail[i] & 0xffL);
+			}
+			if (tailLen > 8) {
+				k2 *= C2;
+				k2 = Long.rotateLeft(k2, 33);
+				k2 *= C1;
+				h2 ^= k2;
+			}
+			if (tailLen > 0) {
+				k1 *= C1;
+				k1 = Long.rotateLeft(k1, 31);
+				k1 *= C2;
+				h1 ^= k1;
+			}
+			h1 ^= length;
+			h2 ^= length;
+			h1 += h2;
+			h2 += h1;
+			h1 = fmix(h1);
+			h2 = fmix(h2);
+			h1 += h2;
+			h2 += h1;
+			byte[] result = new byte[BLOCK_SIZE];
+			for (int i = 0; i < 8; i++) {
+				result[i] = (byte) (h1 >>> (i * 8));
+				result[i + 8] = (byte) (h2 >>> (i * 8));
+			}
+			reset();
+			return result;
+		}
+
+		@Override
+		void reset() {
+			h1 = 0;
+			h2 = 0;
+			length = 0;
+			tailLen = 0;
+		}
+
+		private void block(long k1, long k2) {
+			k1 *= C1;
+			k1 = Long.rotateLeft(k1, 31);
+			k1 *= C2;
+			h1 ^= k1;
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+			k2 *= C2;
+			k2 = Long.rotateLeft(k2, 33);
+			k2 *= C1;
+			h2 ^= k2;
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+
+		private static long fmix(long k) {
+			k ^= k >>> 33;
+			k *= 0xff51afd7ed558ccdL;
+			k ^= k >>> 33;
+			k *= 0xc4ceb9fe1a85ec53L;
+			k ^= k >>> 33;
+			return k;
+		}
+	}
+}
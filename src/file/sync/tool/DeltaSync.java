@@ -0,0 +1,445 @@
+/*
+ * Copyright © 2021 TongZhen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package file.sync.tool;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * 差量同步
+ * <p>
+ * 接收方把旧文件按块计算弱校验(滚动校验和)与强校验(MD5)发给发送方，
+ * 发送方在新文件上滑动窗口查找相同的块，回复"复制旧块"与"字面数据"指令，
+ * 接收方据此用旧文件重建出新文件。重建结果用SHA-256整体校验，启用元数据时同时带上新文件的修改时间
+ *
+ * @author shouchen
+ */
+public class DeltaSync {
+	/**
+	 * 小于该大小的文件直接完整传输
+	 */
+	public static final long MIN_DELTA_SIZE = 1024 * 1024;
+	private static final int MIN_BLOCK_SIZE = 4 * 1024;
+	private static final int MAX_BLOCK_SIZE = 128 * 1024;
+	private static final int MAX_LITERAL = 256 * 1024;
+	private static final int STRONG_LEN = 16;
+	private static final int OP_END = 0;
+	private static final int OP_COPY = 1;
+	private static final int OP_LITERAL = 2;
+	/**
+	 * 重建中的临时文件后缀，与未接收完的文件一样不参与同步
+	 */
+	static final String TMP_SUFFIX = ".FileSyncDelta";
+
+	/**
+	 * 接收方：发送旧文件的块签名，旧文件不存在时发送空签名
+	 *
+	 * @param basis       旧文件
+	 * @param netTransfer 网络传输
+	 * @throws IOException IO异常
+	 */
+	public static void sendSignature(File basis, NetTransfer netTransfer) throws IOException {
+		long len = basis.isFile() ? basis.length() : 0;
+		int blockSize = blockSize(len);
+		int count = (int) (len / blockSize);
+		try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(netTransfer.frameOutput()))) {
+			output.writeInt(blockSize);
+			output.writeInt(count);
+			if (count == 0) {
+				return;
+			}
+			MessageDigest md5 = md5();
+			byte[] block = new byte[blockSize];
+			try (InputStream input = new BufferedInputStream(new FileInputStream(basis), blockSize)) {
+				for (int i = 0; i < count; i++) {
+					readFully(input, block, blockSize);
+					output.writeInt(weakSum(block, 0, blockSize));
+					output.write(md5.digest(block));
+				}
+			}
+		}
+	}
+
+	/**
+	 * 发送方：读取接收方的签名，并根据新文件发送重建指令
+	 *
+	 * @param source      新文件
+	 * @param netTransfer 网络传输
+	 * @throws IOException IO异常
+	 */
+	public static void sendDelta(File source, NetTransfer netTransfer) throws IOException {
+		Signature signature;
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(netTransfer.frameInput()))) {
+			signature = Signature.read(input);
+		}
+		long mtime = source.lastModified();
+		try (InputStream input = new FileInputStream(source);
+			 DataOutputStream output = new DataOutputStream(new BufferedOutputStream(netTransfer.frameOutput()))) {
+			new DeltaWriter(signature, input, output).write();
+			if (netTransfer.hasFeature(NetTransfer.FEATURE_METADATA)) {
+				output.writeLong(mtime);
+			}
+		}
+	}
+
+	/**
+	 * 接收方：读取重建指令，用旧文件重建新文件并替换
+	 *
+	 * @param target      目标文件，同时也是旧文件
+	 * @param netTransfer 网络传输
+	 * @return 重建结果是否通过校验，未通过时目标文件保持不变
+	 * @throws IOException IO异常
+	 */
+	public static boolean getDelta(File target, NetTransfer netTransfer) throws IOException {
+		File tmpFile = new File(target.getPath() + TMP_SUFFIX);
+		MessageDigest sha256 = sha256();
+		byte[] expected = new byte[sha256.getDigestLength()];
+		long mtime = 0;
+		long lenCount = 0;
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(netTransfer.frameInput()));
+			 RandomAccessFile basis = target.isFile() ? new RandomAccessFile(target, "r") : null;
+			 OutputStream output = new BufferedOutputStream(new FileOutputStream(tmpFile))) {
+			int blockSize = input.readInt();
+			byte[] buf = new byte[Math.max(blockSize, MAX_LITERAL)];
+			int op;
+			while ((op = input.readUnsignedByte()) != OP_END) {
+				if (op == OP_COPY) {
+					if (basis == null) {
+						throw new IOException("旧文件不存在");
+					}
+					long offset = (long) input.readInt() * blockSize;
+					int count = input.readInt();
+					basis.seek(offset);
+					for (int i = 0; i < count; i++) {
+						basis.readFully(buf, 0, blockSize);
+						sha256.update(buf, 0, blockSize);
+						output.write(buf, 0, blockSize);
+					}
+					lenCount += (long) count * blockSize;
+				} else if (op == OP_LITERAL) {
+					int len = input.readInt();
+					input.readFully(buf, 0, len);
+					sha256.update(buf, 0, len);
+					output.write(buf, 0, len);
+					lenCount += len;
+				} else {
+					throw new IOException("错误的差量指令 " + op);
+				}
+				Logger.out("已重建 " + lenCount);
+			}
+			input.readFully(expected);
+			if (netTransfer.hasFeature(NetTransfer.FEATURE_METADATA)) {
+				mtime = input.readLong();
+			}
+		} catch (IOException e) {
+			tmpFile.delete();
+			throw e;
+		}
+		if (!Arrays.equals(expected, sha256.digest())) {
+			tmpFile.delete();
+			return false;
+		}
+		if (mtime > 0) {
+			tmpFile.setLastModified(mtime);
+		}
+		Files.move(tmpFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		Logger.out("完成");
+		return true;
+	}
+
+	private static int blockSize(long len) {
+		int size = (int) Math.min(MAX_BLOCK_SIZE, Math.sqrt(len));
+		size = Math.max(MIN_BLOCK_SIZE, size);
+		return size & ~(MIN_BLOCK_SIZE - 1);
+	}
+
+	/**
+	 * rsync的滚动校验和，a为字节和，b为加权和，各取低16位
+	 */
+	private static int weakSum(byte[] buf, int off, int len) {
+		int a = 0;
+		int b = 0;
+		for (int i = 0; i < len; i++) {
+			a += buf[off + i] & 0xff;
+			b += (len - i) * (buf[off + i] & 0xff);
+		}
+		return (a & 0xffff) | (b << 16);
+	}
+
+	private static void readFully(InputStream input, byte[] buf, int len) throws IOException {
+		int total = 0;
+		while (total < len) {
+			int n = input.read(buf, total, len - total);
+			if (n == -1) {
+				throw new EOFException();
+			}
+			total += n;
+		}
+	}
+
+	private static MessageDigest md5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * 旧文件的块签名
+	 */
+	private static class Signature {
+		private int blockSize;
+		private int count;
+		private byte[] strong;
+		private HashMap<Integer, int[]> weakMap;
+		/**
+		 * 弱校验的16位预筛选表，避免每滑动一个字节都查一次哈希表
+		 */
+		private long[] tags;
+
+		private static Signature read(DataInputStream input) throws IOException {
+			Signature signature = new Signature();
+			signature.blockSize = input.readInt();
+			signature.count = input.readInt();
+			signature.strong = new byte[signature.count * STRONG_LEN];
+			signature.weakMap = new HashMap<>(Math.max(16, signature.count * 2));
+			signature.tags = new long[1 << 10];
+			for (int i = 0; i < signature.count; i++) {
+				int weak = input.readInt();
+				input.readFully(signature.strong, i * STRONG_LEN, STRONG_LEN);
+				int[] blocks = signature.weakMap.get(weak);
+				if (blocks == null) {
+					blocks = new int[]{i};
+				} else {
+					blocks = Arrays.copyOf(blocks, blocks.length + 1);
+					blocks[blocks.length - 1] = i;
+				}
+				signature.weakMap.put(weak, blocks);
+				int tag = tag(weak);
+				signature.tags[tag >>> 6] |= 1L << tag;
+			}
+			return signature;
+		}
+
+		private static int tag(int weak) {
+			return (weak ^ (weak >>> 16)) & 0xffff;
+		}
+
+		private boolean mayContain(int weak) {
+			int tag = tag(weak);
+			return (tags[tag >>> 6] & (1L << tag)) != 0;
+		}
+
+		/**
+		 * 查找与窗口内容相同的块，优先返回期望的下一块以便合并连续复制
+		 *
+		 * @return 块编号，找不到时返回-1
+		 */
+		private int find(int weak, byte[] buf, int off, MessageDigest md5, int preferred) {
+			int[] blocks = weakMap.get(weak);
+			if (blocks == null) {
+				return -1;
+			}
+			md5.update(buf, off, blockSize);
+			byte[] digest = md5.digest();
+			int found = -1;
+			for (int block : blocks) {
+				if (strongEquals(block, digest)) {
+					if (block == preferred) {
+						return block;
+					}
+					if (found == -1) {
+						found = block;
+					}
+				}
+			}
+			return found;
+		}
+
+		private boolean strongEquals(int block, byte[] digest) {
+			int base = block * STRONG_LEN;
+			for (int i = 0; i < STRONG_LEN; i++) {
+				if (strong[base + i] != digest[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * 在新文件上滑动窗口生成重建指令
+	 */
+	private static class DeltaWriter {
+		private final Signature signature;
+		private final InputStream input;
+		private final DataOutputStream output;
+		private final int blockSize;
+		private final byte[] buf;
+		private final MessageDigest md5;
+		private final MessageDigest sha256;
+		private int pos;
+		private int limit;
+		private int literalStart;
+		private boolean eof;
+		private int copyStart;
+		private int copyCount;
+		private long lenCount;
+
+		private DeltaWriter(Signature signature, InputStream input, DataOutputStream output) {
+			this.signature = signature;
+			this.input = input;
+			this.output = output;
+			this.blockSize = signature.blockSize;
+			this.buf = new byte[MAX_LITERAL + 2 * blockSize + 1];
+			this.md5 = md5();
+			this.sha256 = sha256();
+		}
+
+		private void write() throws IOException {
+			output.writeInt(blockSize);
+			if (signature.count > 0) {
+				match();
+			}
+			while (true) {
+				pos = limit;
+				writeLiteral();
+				if (eof) {
+					break;
+				}
+				fill(MAX_LITERAL);
+			}
+			writeCopy();
+			output.writeByte(OP_END);
+			output.write(sha256.digest());
+			Logger.out("完成");
+		}
+
+		private void match() throws IOException {
+			int a = 0;
+			int b = 0;
+			boolean summed = false;
+			while (true) {
+				if (!summed) {
+					if (!fill(blockSize)) {
+						return;
+					}
+					int weak = weakSum(buf, pos, blockSize);
+					a = weak & 0xffff;
+					b = weak >>> 16;
+					summed = true;
+				}
+				int weak = (a & 0xffff) | (b << 16);
+				if (signature.mayContain(weak)) {
+					int block = signature.find(weak, buf, pos, md5, copyStart + copyCount);
+					if (block >= 0) {
+						writeLiteral();
+						if (copyCount > 0 && block != copyStart + copyCount) {
+							writeCopy();
+						}
+						if (copyCount == 0) {
+							copyStart = block;
+						}
+						copyCount++;
+						pos += blockSize;
+						literalStart = pos;
+						summed = false;
+						continue;
+					}
+				}
+				if (!fill(blockSize + 1)) {
+					return;
+				}
+				int out = buf[pos] & 0xff;
+				int in = buf[pos + blockSize] & 0xff;
+				a = (a - out + in) & 0xffff;
+				b = (b - blockSize * out + a) & 0xffff;
+				pos++;
+				if (pos - literalStart >= MAX_LITERAL) {
+					writeLiteral();
+				}
+			}
+		}
+
+		/**
+		 * 保证窗口起点后至少有need字节可用
+		 *
+		 * @return 数据不足时返回false
+		 */
+		private boolean fill(int need) throws IOException {
+			if (limit - pos >= need) {
+				return true;
+			}
+			if (literalStart > 0 && buf.length - limit < need) {
+				System.arraycopy(buf, literalStart, buf, 0, limit - literalStart);
+				pos -= literalStart;
+				limit -= literalStart;
+				literalStart = 0;
+			}
+			while (!eof && limit - pos < need && limit < buf.length) {
+				int n = input.read(buf, limit, buf.length - limit);
+				if (n == -1) {
+					eof = true;
+				} else {
+					sha256.update(buf, limit, n);
+					limit += n;
+					lenCount += n;
+					Logger.out("已处理 " + lenCount);
+				}
+			}
+			return limit - pos >= need;
+		}
+
+		private void writeLiteral() throws IOException {
+			if (pos == literalStart) {
+				return;
+			}
+			writeCopy();
+			while (literalStart < pos) {
+				int len = Math.min(MAX_LITERAL, pos - literalStart);
+				output.writeByte(OP_LITERAL);
+				output.writeInt(len);
+				output.write(buf, literalStart, len);
+				literalStart += len;
+			}
+		}
+
+		private void writeCopy() throws IOException {
+			if (copyCount == 0) {
+				return;
+			}
+			output.writeByte(OP_COPY);
+			output.writeInt(copyStart);
+			output.writeInt(copyCount);
+			copyCount = 0;
+		}
+	}
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright © 2021 TongZhen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package file.sync.tool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 差量分析引擎
+ * <p>
+ * 对两个按路径排序的条目流做一次归并，内存中只保留两边当前的条目，大小不同的文件不再比较哈希；
+ * 或者按目录哈希树从根开始逐层比较，只展开哈希不同的目录。
+ * 清单中的哈希不能确定内容是否相同时，大小相同的文件交给调用方交换内容哈希后再决定
+ *
+ * @author shouchen
+ */
+public class DiffEngine {
+	/**
+	 * 差量分析结果
+	 */
+	public interface Listener {
+		/**
+		 * 只存在于源端
+		 *
+		 * @param source 源端条目
+		 * @throws IOException IO异常
+		 */
+		void onAdd(FileEntry source) throws IOException;
+
+		/**
+		 * 只存在于目标端
+		 *
+		 * @param target 目标端条目
+		 * @throws IOException IO异常
+		 */
+		void onDelete(FileEntry target) throws IOException;
+
+		/**
+		 * 两端都存在但内容不同
+		 *
+		 * @param source 源端条目
+		 * @param target 目标端条目
+		 * @throws IOException IO异常
+		 */
+		void onChange(FileEntry source, FileEntry target) throws IOException;
+
+		/**
+		 * 两端相同
+		 *
+		 * @param source 源端条目
+		 */
+		void onSame(FileEntry source);
+	}
+
+	/**
+	 * 比较源端和目标端，源端为同步后的期望状态
+	 *
+	 * @param source   源端条目流
+	 * @param target   目标端条目流
+	 * @param listener 结果回调
+	 * @throws IOException IO异常
+	 */
+	public static void diff(EntrySource source, EntrySource target, Listener listener) throws IOException {
+		diff(source, target, listener, null);
+	}
+
+	/**
+	 * 比较源端和目标端，两端都存在、大小相同但哈希不同或未知的文件
+	 * 写入待比较列表，由调用方比较内容哈希后决定
+	 *
+	 * @param source     源端条目流
+	 * @param target     目标端条目流
+	 * @param listener   结果回调
+	 * @param candidates 待比较列表，为null时哈希不同即为修改
+	 * @throws IOException IO异常
+	 */
+	public static void diff(EntrySource source, EntrySource target, Listener listener, EntrySpool candidates)
+			throws IOException {
+		FileEntry s = source.read();
+		FileEntry t = target.read();
+		while (s != null || t != null) {
+			int order = s == null ? 1 : t == null ? -1 : ManifestSorter.ORDER.compare(s, t);
+			if (order < 0) {
+				listener.onAdd(s);
+				s = source.read();
+			} else if (order > 0) {
+				listener.onDelete(t);
+				t = target.read();
+			} else {
+				if (same(s, t)) {
+					listener.onSame(s);
+				} else if (candidates != null && sameSizeFiles(s, t)) {
+					candidates.add(s);
+				} else {
+					listener.onChange(s, t);
+				}
+				s = source.read();
+				t = target.read();
+			}
+		}
+	}
+
+	/**
+	 * 按目录哈希树逐层比较本地和服务端，每层只需一次往返
+	 *
+	 * @param local         本地目录哈希树
+	 * @param remoteRoot    服务端根哈希
+	 * @param transfer      网络传输
+	 * @param localIsSource 本地是否为源端
+	 * @param listener      结果回调
+	 * @throws IOException IO异常
+	 */
+	public static void diffTree(MerkleTree local, byte[] remoteRoot, NetTransfer transfer, boolean localIsSource,
+								Listener listener) throws IOException {
+		diffTree(local, remoteRoot, transfer, localIsSource, listener, null);
+	}
+
+	/**
+	 * 按目录哈希树逐层比较，哈希不同但大小相同的文件写入待比较列表，由调用方比较内容哈希后决定
+	 *
+	 * @param local         本地目录哈希树
+	 * @param remoteRoot    服务端根哈希
+	 * @param transfer      网络传输
+	 * @param localIsSource 本地是否为源端
+	 * @param listener      结果回调
+	 * @param candidates    待比较列表，为null时哈希不同即为修改
+	 * @throws IOException IO异常
+	 */
+	public static void diffTree(MerkleTree local, byte[] remoteRoot, NetTransfer transfer, boolean localIsSource,
+								Listener listener, EntrySpool candidates) throws IOException {
+		List<Pending> level = new ArrayList<>();
+		if (Arrays.equals(local.getRootHash(), remoteRoot)) {
+			for (FileEntry child : local.getChildren("")) {
+				sameTree(local, child, listener);
+			}
+		} else {
+			level.add(new Pending("", true, true));
+		}
+		while (!level.isEmpty()) {
+			List<String> request = new ArrayList<>();
+			for (Pending pending : level) {
+				if (pending.remote) {
+					request.add(pending.path);
+				}
+			}
+			Map<String, List<FileEntry>> remote = request.isEmpty()
+					? Collections.emptyMap() : MerkleTree.fetch(transfer, request);
+			List<Pending> next = new ArrayList<>();
+			for (Pending pending : level) {
+				List<FileEntry> localChildren = pending.local ? local.getChildren(pending.path) : Collections.emptyList();
+				List<FileEntry> remoteChildren = pending.remote ? remote.get(pending.path) : Collections.emptyList();
+				diffChildren(local, localChildren, remoteChildren, localIsSource, listener, candidates, next);
+			}
+			level = next;
+		}
+		MerkleTree.fetch(transfer, Collections.emptyList());
+	}
+
+	private static void diffChildren(MerkleTree local, List<FileEntry> localChildren, List<FileEntry> remoteChildren,
+									 boolean localIsSource, Listener listener, EntrySpool candidates, List<Pending> next)
+			throws IOException {
+		int i = 0;
+		int j = 0;
+		while (i < localChildren.size() || j < remoteChildren.size()) {
+			FileEntry l = i < localChildren.size() ? localChildren.get(i) : null;
+			FileEntry r = j < remoteChildren.size() ? remoteChildren.get(j) : null;
+			int order = l == null ? 1 : r == null ? -1 : ManifestSorter.ORDER.compare(l, r);
+			if (order < 0) {
+				if (localIsSource) {
+					listener.onAdd(l);
+				} else {
+					listener.onDelete(l);
+				}
+				if (l.isDir()) {
+					next.add(new Pending(l.getPath(), true, false));
+				}
+				i++;
+			} else if (order > 0) {
+				if (localIsSource) {
+					listener.onDelete(r);
+				} else {
+					listener.onAdd(r);
+				}
+				if (r.isDir()) {
+					next.add(new Pending(r.getPath(), false, true));
+				}
+				j++;
+			} else {
+				if (l.isDir() == r.isDir() && Arrays.equals(l.getHash(), r.getHash())) {
+					sameTree(local, l, listener);
+				} else if (l.isDir() && r.isDir()) {
+					listener.onSame(l);
+					next.add(new Pending(l.getPath(), true, true));
+				} else if (candidates != null && sameSizeFiles(l, r)) {
+					candidates.add(localIsSource ? l : r);
+				} else {
+					if (localIsSource) {
+						listener.onChange(l, r);
+					} else {
+						listener.onChange(r, l);
+					}
+					if (l.isDir()) {
+						next.add(new Pending(l.getPath(), true, false));
+					}
+					if (r.isDir()) {
+						next.add(new Pending(r.getPath(), false, true));
+					}
+				}
+				i++;
+				j++;
+			}
+		}
+	}
+
+	private static void sameTree(MerkleTree local, FileEntry entry, Listener listener) {
+		listener.onSame(entry);
+		if (entry.isDir()) {
+			for (FileEntry child : local.getChildren(entry.getPath())) {
+				sameTree(local, child, listener);
+			}
+		}
+	}
+
+	private static boolean same(FileEntry s, FileEntry t) {
+		if (s.isDir() || t.isDir()) {
+			return s.isDir() == t.isDir();
+		}
+		if (s.getSize() >= 0 && t.getSize() >= 0 && s.getSize() != t.getSize()) {
+			return false;
+		}
+		return Arrays.equals(s.getHash(), t.getHash());
+	}
+
+	private static boolean sameSizeFiles(FileEntry s, FileEntry t) {
+		return !s.isDir() && !t.isDir() && s.getSize() >= 0 && s.getSize() == t.getSize();
+	}
+
+	/**
+	 * 待比较的目录及其在两端是否存在
+	 */
+	private static class Pending {
+		private final String path;
+		private final boolean local;
+		private final boolean remote;
+
+		private Pending(String path, boolean local, boolean remote) {
+			this.path = path;
+			this.local = local;
+			this.remote = remote;
+		}
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright © 2021 TongZhen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package file.sync.tool;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * 目录变化监听器
+ * <p>
+ * 监听同步目录及其所有子目录，新建的子目录自动加入监听，其中已有的内容也记为变化。
+ * 事件在防抖间隔内合并，只返回发生变化的相对路径，由调用方根据文件的当前状态决定如何同步。
+ * 事件队列溢出时可能丢失变化，调用方需要重新全量核对
+ *
+ * @author shouchen
+ */
+class DirectoryWatcher implements Closeable {
+	/**
+	 * 持续有事件时，最多合并这么多个防抖间隔后返回
+	 */
+	private static final int MAX_DEBOUNCE_ROUNDS = 10;
+	private final Path root;
+	private final WatchService watchService;
+	private final Map<WatchKey, Path> keys;
+	private boolean overflow;
+
+	/**
+	 * @param root 同步目录
+	 * @throws IOException 目录无法监听
+	 */
+	DirectoryWatcher(File root) throws IOException {
+		this.root = root.toPath().toAbsolutePath();
+		this.watchService = FileSystems.getDefault().newWatchService();
+		this.keys = new HashMap<>(16);
+		this.overflow = false;
+		register(this.root, null);
+	}
+
+	/**
+	 * 等待文件变化，收到第一个事件后继续收集，直到一个防抖间隔内没有新的事件
+	 *
+	 * @param debounce 防抖间隔，毫秒
+	 * @param timeout  等待第一个事件的最长时间，毫秒
+	 * @return 按路径排序的变化路径，父目录在子项之前，超时返回空集合
+	 * @throws InterruptedException 等待被中断
+	 */
+	SortedSet<String> poll(long debounce, long timeout) throws InterruptedException {
+		SortedSet<String> changes = new TreeSet<>();
+		WatchKey key = watchService.poll(timeout, TimeUnit.MILLISECONDS);
+		long deadline = System.currentTimeMillis() + debounce * MAX_DEBOUNCE_ROUNDS;
+		while (key != null) {
+			process(key, changes);
+			if (System.currentTimeMillis() >= deadline) {
+				break;
+			}
+			key = watchService.poll(debounce, TimeUnit.MILLISECONDS);
+		}
+		return changes;
+	}
+
+	/**
+	 * 上次调用以来是否发生过事件溢出，调用后清除标记
+	 *
+	 * @return 是否溢出
+	 */
+	boolean takeOverflow() {
+		boolean result = overflow;
+		overflow = false;
+		return result;
+	}
+
+	@Override
+	public void close() throws IOException {
+		watchService.close();
+	}
+
+	private void process(WatchKey key, Set<String> changes) {
+		Path dir = keys.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW || dir == null) {
+				overflow = true;
+				continue;
+			}
+			Path child = dir.resolve((Path) event.context());
+			changes.add(relativePath(child));
+			if (event.kind() == ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+				try {
+					register(child, changes);
+				} catch (IOException e) {
+					Logger.warn(e);
+					overflow = true;
+				}
+			}
+		}
+		if (!key.reset()) {
+			keys.remove(key);
+		}
+	}
+
+	/**
+	 * 监听目录及其所有子目录
+	 *
+	 * @param dir     目录
+	 * @param changes 不为null时把目录中已有的内容记为变化
+	 */
+	private void register(Path dir, Set<String> changes) throws IOException {
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs) throws IOException {
+				keys.put(path.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), path);
+				if (changes != null) {
+					changes.add(relativePath(path));
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+				if (changes != null) {
+					changes.add(relativePath(path));
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path path, IOException e) {
+				// 遍历期间被删除的文件会在之后的事件中处理
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private String relativePath(Path path) {
+		return root.relativize(path).toString().replace('\\', '/');
+	}
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright © 2021 TongZhen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package file.sync.tool;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * 按路径排序的条目流
+ *
+ * @author shouchen
+ */
+public interface EntrySource extends Closeable {
+	/**
+	 * 读取下一个条目
+	 *
+	 * @return 条目，读完时返回null
+	 * @throws IOException IO异常
+	 */
+	FileEntry read() throws IOException;
+}
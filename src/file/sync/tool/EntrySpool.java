@@ -0,0 +1,73 @@
+/*
+ * Copyright © 2021 TongZhen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package file.sync.tool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * 写入临时文件的条目列表，写完后可以多次顺序读取
+ *
+ * @author shouchen
+ */
+public class EntrySpool {
+	private final File file;
+	private ManifestWriter writer;
+	private long size;
+
+	public EntrySpool(int hashLen) throws IOException {
+		this.file = File.createTempFile("FileSync", ".spool");
+		this.writer = new ManifestWriter(new FileOutputStream(file), hashLen);
+	}
+
+	public void add(FileEntry entry) throws IOException {
+		writer.write(entry);
+		size++;
+	}
+
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * 打开一个从头开始的读取流，第一次打开时结束写入
+	 *
+	 * @return 条目流
+	 * @throws IOException IO异常
+	 */
+	public EntrySource open() throws IOException {
+		if (writer != null) {
+			writer.close();
+			writer = null;
+		}
+		return new ManifestReader(new FileInputStream(file));
+	}
+
+	public void delete() {
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				Logger.warn(e);
+			}
+			writer = null;
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright © 2021 TongZhen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package file.sync.tool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 清单条目
+ *
+ * @author shouchen
+ */
+public class FileEntry {
+	private final String path;
+	private final boolean dir;
+	private final byte[] hash;
+	private final long size;
+	private final long mtime;
+
+	public FileEntry(String path, boolean dir, byte[] hash) {
+		this(path, dir, hash, -1, 0);
+	}
+
+	/**
+	 * @param path  相对路径
+	 * @param dir   是否为目录
+	 * @param hash  文件为内容哈希或元数据指纹，目录为目录哈希
+	 * @param size  文件大小，未知时为-1
+	 * @param mtime 修改时间，毫秒，未知时为0
+	 */
+	public FileEntry(String path, boolean dir, byte[] hash, long size, long mtime) {
+		this.path = path;
+		this.dir = dir;
+		this.hash = hash;
+		this.size = size;
+		this.mtime = mtime;
+	}
+
+	/**
+	 * 快速比较模式下代替内容哈希的元数据指纹，由文件大小和精确到秒的修改时间组成，
+	 * 文件系统的时间精度不同时仍能匹配
+	 *
+	 * @param size  文件大小
+	 * @param mtime 修改时间，毫秒
+	 * @return 与内容哈希等长的指纹
+	 */
+	public static byte[] metadataHash(long size, long mtime) {
+		return ByteBuffer.allocate(ManifestWriter.HASH_LEN)
+				.putLong(size)
+				.putLong(Math.floorDiv(mtime, 1000))
+				.array();
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public boolean isDir() {
+		return dir;
+	}
+
+	public byte[] getHash() {
+		return hash;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getMtime() {
+		return mtime;
+	}
+}
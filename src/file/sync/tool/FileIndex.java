@@ -0,0 +1,239 @@
+/*
+ * Copyright © 2021 TongZhen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package file.sync.tool;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 文件哈希索引
+ * <p>
+ * 索引保存在同步目录下，记录每个文件的大小、修改时间、文件标识和各个算法的哈希值，
+ * 元数据没有变化的文件直接复用上次的哈希值，扫描期间可被多个线程同时查询和更新
+ *
+ * @author shouchen
+ */
+public class FileIndex {
+	/**
+	 * 索引文件名
+	 */
+	public static final String INDEX_FILE = ".FileSyncIndex";
+	private static final String INDEX_TMP_FILE = INDEX_FILE + ".tmp";
+	private static final int MAGIC = 0x46534958;
+	private static final int VERSION = 2;
+	/**
+	 * 只记录SHA-256的旧版本，仍可读取
+	 */
+	private static final int VERSION_SHA256 = 1;
+	/**
+	 * 修改时间与上次扫描时间过于接近的文件可能在扫描期间被改写，需要重新计算
+	 */
+	private static final long RACY_WINDOW = 2000;
+	private final File indexFile;
+	private final File tmpFile;
+	private final HashMap<String, Entry> oldEntries;
+	private final ConcurrentHashMap<String, Entry> newEntries;
+	private long lastScanTime;
+	private long scanTime;
+
+	private FileIndex(File dir) {
+		this.indexFile = new File(dir, INDEX_FILE);
+		this.tmpFile = new File(dir, INDEX_TMP_FILE);
+		this.oldEntries = new HashMap<>(16);
+		this.newEntries = new ConcurrentHashMap<>(16);
+		this.lastScanTime = 0;
+		this.scanTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * 加载目录下的索引，索引不存在或损坏时返回空索引
+	 *
+	 * @param dir 同步目录
+	 * @return 索引对象
+	 */
+	public static FileIndex load(File dir) {
+		FileIndex index = new FileIndex(dir);
+		if (!index.indexFile.isFile()) {
+			return index;
+		}
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(index.indexFile)))) {
+			int version = input.readInt() == MAGIC ? input.readInt() : -1;
+			if (version != VERSION && version != VERSION_SHA256) {
+				Logger.warn("索引版本不匹配，将重新建立索引");
+				return index;
+			}
+			index.lastScanTime = input.readLong();
+			int count = input.readInt();
+			for (int i = 0; i < count; i++) {
+				String path = input.readUTF();
+				long size = input.readLong();
+				long mtime = input.readLong();
+				String fileKey = input.readUTF();
+				String[] hashes = new String[ContentHash.ALGORITHM_COUNT];
+				if (version == VERSION_SHA256) {
+					hashes[ContentHash.SHA256] = input.readUTF();
+				} else {
+					int algorithms = input.readUnsignedByte();
+					for (int j = 0; j < algorithms; j++) {
+						String hash = input.readUTF();
+						if (j < hashes.length && !hash.isEmpty()) {
+							hashes[j] = hash;
+						}
+					}
+				}
+				index.oldEntries.put(path, new Entry(size, mtime, fileKey, hashes));
+			}
+			Logger.info("已加载索引 " + count + " 条");
+		} catch (IOException e) {
+			Logger.warn("索引读取失败，将重新建立索引");
+			index.oldEntries.clear();
+		}
+		return index;
+	}
+
+	/**
+	 * 是否为索引自身的文件
+	 *
+	 * @param relativePath 相对路径
+	 * @return 是否为索引文件
+	 */
+	public static boolean isIndexFile(String relativePath) {
+		return INDEX_FILE.equals(relativePath) || INDEX_TMP_FILE.equals(relativePath);
+	}
+
+	/**
+	 * 查找元数据未变化的文件的哈希值
+	 *
+	 * @param path      相对路径
+	 * @param size      文件大小
+	 * @param mtime     修改时间
+	 * @param fileKey   文件标识，不支持时为空字符串
+	 * @param algorithm 哈希算法
+	 * @return 哈希值，需要重新计算时返回null
+	 */
+	public String lookup(String path, long size, long mtime, String fileKey, int algorithm) {
+		Entry entry = reusable(path, size, mtime, fileKey);
+		return entry == null ? null : entry.hashes[algorithm];
+	}
+
+	/**
+	 * 记录本次扫描的结果，元数据未变化时保留其他算法的哈希值
+	 *
+	 * @param path      相对路径
+	 * @param size      文件大小
+	 * @param mtime     修改时间
+	 * @param fileKey   文件标识
+	 * @param algorithm 哈希算法
+	 * @param hash      哈希值
+	 */
+	public void update(String path, long size, long mtime, String fileKey, int algorithm, String hash) {
+		Entry old = reusable(path, size, mtime, fileKey);
+		String[] hashes = old == null ? new String[ContentHash.ALGORITHM_COUNT] : old.hashes.clone();
+		hashes[algorithm] = hash;
+		newEntries.put(path, new Entry(size, mtime, fileKey, hashes));
+	}
+
+	/**
+	 * 本次扫描没有计算哈希的文件，元数据未变化时保留上次的哈希值
+	 *
+	 * @param path    相对路径
+	 * @param size    文件大小
+	 * @param mtime   修改时间
+	 * @param fileKey 文件标识
+	 */
+	public void retain(String path, long size, long mtime, String fileKey) {
+		Entry entry = reusable(path, size, mtime, fileKey);
+		if (entry != null) {
+			newEntries.putIfAbsent(path, entry);
+		}
+	}
+
+	/**
+	 * 用本次扫描的结果覆盖索引文件，未再出现的条目被丢弃
+	 */
+	public void save() {
+		try {
+			try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+				output.writeInt(MAGIC);
+				output.writeInt(VERSION);
+				output.writeLong(scanTime);
+				output.writeInt(newEntries.size());
+				for (Map.Entry<String, Entry> e : newEntries.entrySet()) {
+					Entry entry = e.getValue();
+					output.writeUTF(e.getKey());
+					output.writeLong(entry.size);
+					output.writeLong(entry.mtime);
+					output.writeUTF(entry.fileKey);
+					output.writeByte(entry.hashes.length);
+					for (String hash : entry.hashes) {
+						output.writeUTF(hash == null ? "" : hash);
+					}
+				}
+			}
+			Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			Logger.warn("索引保存失败");
+			Logger.warn(e);
+			tmpFile.delete();
+		}
+	}
+
+	/**
+	 * 只计算了部分文件的哈希时保存，其余文件保留上次的结果。
+	 * 上次在竞争窗口内的条目本来就不可复用，按本次的扫描时间会被误认为可靠，不再保留
+	 */
+	public void saveMerged() {
+		for (Map.Entry<String, Entry> e : oldEntries.entrySet()) {
+			if (e.getValue().mtime < lastScanTime - RACY_WINDOW) {
+				newEntries.putIfAbsent(e.getKey(), e.getValue());
+			}
+		}
+		save();
+	}
+
+	/**
+	 * 上次扫描时元数据相同且不在竞争窗口内的条目
+	 */
+	private Entry reusable(String path, long size, long mtime, String fileKey) {
+		Entry entry = oldEntries.get(path);
+		if (entry == null || entry.size != size || entry.mtime != mtime || !entry.fileKey.equals(fileKey)) {
+			return null;
+		}
+		if (mtime >= lastScanTime - RACY_WINDOW) {
+			return null;
+		}
+		return entry;
+	}
+
+	private static class Entry {
+		private final long size;
+		private final long mtime;
+		private final String fileKey;
+		private final String[] hashes;
+
+		private Entry(long size, long mtime, String fileKey, String[] hashes) {
+			this.size = size;
+			this.mtime = mtime;
+			this.fileKey = fileKey;
+			this.hashes = hashes;
+		}
+	}
+}
@@ -16,136 +16,420 @@
 
 package file.sync.tool;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.text.DecimalFormat;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
-import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created with IntelliJ IDEA.
  * Description:
  * 文件解析器
+ * <p>
+ * 目录遍历和文件哈希计算以fork/join任务的形式并行执行，结果交给外部排序器，
+ * 内存占用不随文件数量增长；也可以同时由子项计算每个目录的哈希，建立目录哈希树。
+ * 小文件使用每个线程复用的缓冲区读取，大文件按窗口映射到内存后计算哈希。
+ * 哈希算法由双方协商，短于清单哈希长度的结果在末尾补零；快速比较模式下不读取文件内容，
+ * 以大小和修改时间组成的元数据指纹代替内容哈希。
+ * 也可以先只收集元数据，之后只为两端大小相同的文件按需计算哈希
  *
  * @author shouchen
  * DateTime: 2021-02-16 13:21
  */
 public class FileParse {
-	private static final int PROGRESS_BAR_LEN = 25;
-	public static final String DIR = "dir";
-	private static HashMap<String, String> fileMap;
-	private static List<String> ignoreFileList;
-	private static int ignoreCount;
-	private static int dirPathLen;
-
-	public static synchronized HashMap<String, String> fileParse(String dirPath, List<String> ignoreList) {
-		Logger.info("开始分析目录 " + dirPath);
-		File dir = new File(dirPath);
-		ignoreFileList = new ArrayList<>();
-		for (String fileName : ignoreList) {
-			ignoreFileList.add(new File(dirPath, fileName).getAbsolutePath());
-		}
-		ignoreCount = 0;
-		FileParse.dirPathLen = dir.getAbsolutePath().length() + 1;
-		fileMap = new HashMap<>(16);
-		File[] list = dir.listFiles();
-		if (list == null) {
-			return fileMap;
+	private static final long PROGRESS_INTERVAL = 200;
+	/**
+	 * 超过此大小的文件使用内存映射计算哈希
+	 */
+	private static final long MAP_THRESHOLD = 16 * 1024 * 1024;
+	/**
+	 * 每次映射的窗口大小
+	 */
+	private static final long MAP_WINDOW = 64 * 1024 * 1024;
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+	private final File rootDir;
+	private final int parallelism;
+	private final IgnoreRules ignoreRules;
+	private final int hashAlgorithm;
+	private final boolean quickCheck;
+	private final ThreadLocal<ContentHash> contentHash;
+	private final ManifestSorter sorter;
+	private final AtomicInteger ignoreCount;
+	private final AtomicInteger parsedCount;
+	private final AtomicLong parsedLen;
+	private final AtomicLong lastProgress;
+	private FileIndex fileIndex;
+	private Map<String, List<FileEntry>> listings;
+	private boolean deferHash;
+	/**
+	 * 快速比较时按需加载的索引，只包含部分文件的结果，保存时需要保留其余条目
+	 */
+	private boolean partialIndex;
+	private ForkJoinPool hashPool;
+	private int hashedCount;
+
+	/**
+	 * @param dirPath       同步目录
+	 * @param ignoreList    忽略规则，见 {@link IgnoreRules}
+	 * @param parallelism   并行线程数，小于等于0时使用处理器核心数
+	 * @param runSize       排序时内存中最多缓存的条目数
+	 * @param hashAlgorithm 文件内容哈希算法
+	 * @param quickCheck    是否只按大小和修改时间比较
+	 */
+	public FileParse(String dirPath, List<String> ignoreList, int parallelism, int runSize, int hashAlgorithm,
+					 boolean quickCheck) {
+		this.rootDir = new File(dirPath);
+		this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+		this.ignoreRules = new IgnoreRules(ignoreList);
+		this.hashAlgorithm = hashAlgorithm;
+		this.quickCheck = quickCheck;
+		this.contentHash = ThreadLocal.withInitial(() -> ContentHash.newInstance(hashAlgorithm));
+		this.sorter = new ManifestSorter(runSize, ManifestWriter.HASH_LEN);
+		this.ignoreCount = new AtomicInteger();
+		this.parsedCount = new AtomicInteger();
+		this.parsedLen = new AtomicLong();
+		this.lastProgress = new AtomicLong();
+	}
+
+	/**
+	 * 解析同步目录
+	 *
+	 * @return 按路径排序的条目流
+	 * @throws IOException 排序临时文件读写失败
+	 */
+	public EntrySource parse() throws IOException {
+		return scanSorted();
+	}
+
+	/**
+	 * 只收集文件大小和修改时间，不计算哈希，之后用 {@link #hash(List)} 按需计算，
+	 * 全部计算完后调用 {@link #finish()} 保存索引
+	 *
+	 * @return 按路径排序的条目流，文件条目没有哈希
+	 * @throws IOException 排序临时文件读写失败
+	 */
+	public EntrySource parseMetadata() throws IOException {
+		deferHash = true;
+		return scanSorted();
+	}
+
+	/**
+	 * 扫描并排序，失败时删除排序的临时文件
+	 */
+	private EntrySource scanSorted() throws IOException {
+		try {
+			scan();
+			return sorter.sorted();
+		} catch (IOException | RuntimeException e) {
+			sorter.discard();
+			throw e;
 		}
-		for (File file : list) {
-			if (file.isDirectory()) {
-				parseDir(file);
+	}
+
+	/**
+	 * 并行计算一组文件的内容哈希，快速比较时第一次调用才加载索引
+	 *
+	 * @param paths 相对路径
+	 * @return 与路径一一对应的哈希值，文件不存在或读取失败时为空数组
+	 */
+	public List<byte[]> hash(List<String> paths) {
+		if (fileIndex == null) {
+			fileIndex = FileIndex.load(rootDir);
+			partialIndex = true;
+		}
+		if (hashPool == null) {
+			hashPool = new ForkJoinPool(parallelism);
+		}
+		List<ForkJoinTask<byte[]>> tasks = new ArrayList<>(paths.size());
+		for (String path : paths) {
+			tasks.add(hashPool.submit(() -> hashPath(path)));
+		}
+		List<byte[]> hashes = new ArrayList<>(paths.size());
+		for (ForkJoinTask<byte[]> task : tasks) {
+			hashes.add(task.join());
+		}
+		hashedCount += paths.size();
+		return hashes;
+	}
+
+	/**
+	 * 结束按需计算哈希，保存索引
+	 */
+	public void finish() {
+		if (hashPool != null) {
+			hashPool.shutdown();
+			hashPool = null;
+		}
+		if (fileIndex != null) {
+			if (partialIndex) {
+				fileIndex.saveMerged();
 			} else {
-				parseFile(file);
+				fileIndex.save();
 			}
+			fileIndex = null;
 		}
-		Logger.info("分析完毕，已分析 " + fileMap.size() + " 个文件");
-		return fileMap;
+		Logger.info("哈希计算完毕，共 " + hashedCount + " 个文件");
 	}
 
-	private static void parseDir(File dir) {
-		String dirName = dir.getAbsolutePath().substring(dirPathLen);
-		if (isIgnore(dir)) {
-			Logger.info("忽略目录 " + dirName);
-			ignoreCount++;
-			return;
+	/**
+	 * 解析同步目录并建立目录哈希树，所有目录的内容都保存在内存中
+	 *
+	 * @return 目录哈希树
+	 * @throws IOException IO异常
+	 */
+	public MerkleTree parseTree() throws IOException {
+		listings = new ConcurrentHashMap<>(16);
+		return new MerkleTree(scan(), listings);
+	}
+
+	private byte[] scan() throws IOException {
+		Logger.info("开始分析目录 " + rootDir.getPath() + "，线程数 " + parallelism + "，"
+				+ (quickCheck ? "按大小和修改时间比较" : deferHash ? "按需计算哈希" : "哈希算法 " + ContentHash.name(hashAlgorithm)));
+		// 快速比较不使用索引，保留索引供之后的内容比较使用
+		fileIndex = quickCheck ? null : FileIndex.load(rootDir);
+		File[] list = rootDir.listFiles();
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		byte[] rootHash;
+		try {
+			rootHash = pool.invoke(new RecursiveTask<byte[]>() {
+				@Override
+				protected byte[] compute() {
+					return parseChildren("", list);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			pool.shutdown();
+		}
+		if (fileIndex != null && !deferHash) {
+			fileIndex.save();
+			fileIndex = null;
+		}
+		Logger.info("分析完毕，已分析 " + parsedCount.get() + " 个文件");
+		return rootHash;
+	}
+
+	public int getIgnoreCount() {
+		return ignoreCount.get();
+	}
+
+	/**
+	 * 解析一个文件或目录，返回其条目，目录的条目带有目录哈希。
+	 * 先检查忽略规则，被忽略的目录不再列出其内容
+	 */
+	private class EntryTask extends RecursiveTask<FileEntry> {
+		private static final long serialVersionUID = 1L;
+		private final File file;
+		private final String path;
+
+		private EntryTask(File file, String path) {
+			this.file = file;
+			this.path = path;
 		}
-		Logger.info("开始扫描目录 " + dirName);
-		fileMap.put(dirName.replace('\\', '/'), DIR);
-		File[] list = dir.listFiles();
+
+		@Override
+		protected FileEntry compute() {
+			BasicFileAttributes attributes;
+			try {
+				attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+			} catch (IOException e) {
+				Logger.warn(e);
+				return null;
+			}
+			boolean dir = attributes.isDirectory();
+			if (ignoreRules.isIgnored(path, dir)) {
+				Logger.info((dir ? "忽略目录 " : "忽略文件 ") + path);
+				ignoreCount.incrementAndGet();
+				return null;
+			}
+			if (dir) {
+				return parseDir(file, path);
+			}
+			return parseFile(file, path, attributes);
+		}
+	}
+
+	private FileEntry parseDir(File dir, String path) {
+		Logger.info("开始扫描目录 " + path);
+		FileEntry entry = new FileEntry(path, true, parseChildren(path, dir.listFiles()));
+		addEntry(entry);
+		return entry;
+	}
+
+	/**
+	 * 并行解析目录的所有子项
+	 *
+	 * @param path 目录相对路径，根目录为空字符串
+	 * @param list 子项
+	 * @return 目录哈希，不建立目录哈希树时为null
+	 */
+	private byte[] parseChildren(String path, File[] list) {
 		if (list == null) {
-			return;
+			list = new File[0];
 		}
+		List<EntryTask> tasks = new ArrayList<>(list.length);
 		for (File file : list) {
-			if (file.isDirectory()) {
-				parseDir(file);
-			} else {
-				parseFile(file);
+			if (path.isEmpty() && FileIndex.isIndexFile(file.getName()) || PartialFile.isPartialFile(file.getName())) {
+				continue;
+			}
+			tasks.add(new EntryTask(file, path.isEmpty() ? file.getName() : path + "/" + file.getName()));
+		}
+		ForkJoinTask.invokeAll(tasks);
+		if (listings == null) {
+			return null;
+		}
+		List<FileEntry> children = new ArrayList<>(tasks.size());
+		for (EntryTask task : tasks) {
+			FileEntry entry = task.join();
+			if (entry != null) {
+				children.add(entry);
 			}
 		}
+		children.sort(ManifestSorter.ORDER);
+		listings.put(path, children);
+		return MerkleTree.hash(children);
 	}
 
-	private static void parseFile(File file) {
-		String fileName = file.getAbsolutePath().substring(dirPathLen);
-		if (isIgnore(file)) {
-			Logger.info("忽略文件 " + fileName);
-			ignoreCount++;
-			return;
+	private FileEntry parseFile(File file, String path, BasicFileAttributes attributes) {
+		long maxLen = attributes.size();
+		long mtime = attributes.lastModifiedTime().toMillis();
+		Object key = attributes.fileKey();
+		String fileKey = key == null ? "" : key.toString();
+		FileEntry entry;
+		if (quickCheck) {
+			entry = new FileEntry(path, false, FileEntry.metadataHash(maxLen, mtime), maxLen, mtime);
+		} else if (deferHash) {
+			fileIndex.retain(path, maxLen, mtime, fileKey);
+			entry = new FileEntry(path, false, null, maxLen, mtime);
+		} else {
+			entry = new FileEntry(path, false, contentHash(file, path, maxLen, mtime, fileKey), maxLen, mtime);
+		}
+		addEntry(entry);
+		parsedCount.incrementAndGet();
+		return entry;
+	}
+
+	private byte[] hashPath(String path) {
+		File file = new File(rootDir, path);
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		} catch (IOException e) {
+			Logger.warn(e);
+			return new byte[0];
 		}
-		Logger.info("开始分析文件 " + fileName);
-		long maxLen = file.length();
-		long stepLen = maxLen / 1000;
-		long parseLen = 0;
-		byte[] buf = new byte[1024 * 1024];
+		if (!attributes.isRegularFile()) {
+			return new byte[0];
+		}
+		Object key = attributes.fileKey();
+		return contentHash(file, path, attributes.size(), attributes.lastModifiedTime().toMillis(),
+				key == null ? "" : key.toString());
+	}
+
+	/**
+	 * 计算文件内容哈希，元数据未变化时使用索引中的结果
+	 *
+	 * @return 补零后的哈希值，读取失败时为空数组
+	 */
+	private byte[] contentHash(File file, String path, long maxLen, long mtime, String fileKey) {
+		String cached = fileIndex.lookup(path, maxLen, mtime, fileKey, hashAlgorithm);
+		if (cached != null) {
+			fileIndex.update(path, maxLen, mtime, fileKey, hashAlgorithm, cached);
+			return widen(Base64.getDecoder().decode(cached));
+		}
+		Logger.info("开始分析文件 " + path);
+		byte[] hash = new byte[0];
+		String encoded = "";
+		try {
+			hash = maxLen > MAP_THRESHOLD ? hashMapped(file) : hashStream(file);
+			encoded = Base64.getEncoder().encodeToString(hash);
+			fileIndex.update(path, maxLen, mtime, fileKey, hashAlgorithm, encoded);
+			hash = widen(hash);
+		} catch (IOException e) {
+			Logger.warn(e);
+		}
+		showProgress();
+		Logger.info("分析结果 " + path + " " + encoded);
+		return hash;
+	}
+
+	private byte[] hashStream(File file) throws IOException {
+		ContentHash digest = contentHash.get();
+		digest.reset();
+		byte[] buf = BUFFER.get();
 		int bufLen;
-		int addLen = 0;
-		double parseRot;
-		String sha256 = "";
-		DecimalFormat decimalFormat = new DecimalFormat("0.0%");
-		try (FileInputStream fileInputStream = new FileInputStream(file);
-			 BufferedInputStream bufferedInputStream = new BufferedInputStream(fileInputStream)) {
-			MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
-			while ((bufLen = bufferedInputStream.read(buf)) != -1) {
-				parseLen += bufLen;
-				addLen += bufLen;
-				parseRot = (double) parseLen / maxLen;
-				if (addLen >= stepLen) {
-					addLen = 0;
-					int barLen = (int) (PROGRESS_BAR_LEN * parseRot);
-					StringBuilder outBuilder = new StringBuilder("解析中...[");
-					for (int i = 0; i < barLen; i++) {
-						outBuilder.append('=');
-					}
-					for (int i = barLen; i < PROGRESS_BAR_LEN; i++) {
-						outBuilder.append('-');
-					}
-					outBuilder.append("] ");
-					outBuilder.append(parseLen);
-					outBuilder.append('/');
-					outBuilder.append(maxLen);
-					outBuilder.append(" (");
-					outBuilder.append(decimalFormat.format(parseRot));
-					outBuilder.append(')');
-					Logger.out(outBuilder);
-				}
-				messageDigest.update(buf, 0, bufLen);
+		try (FileInputStream fileInputStream = new FileInputStream(file)) {
+			while ((bufLen = fileInputStream.read(buf)) != -1) {
+				digest.update(buf, 0, bufLen);
+				parsedLen.addAndGet(bufLen);
+				showProgress();
 			}
-			sha256 = Base64.getEncoder().encodeToString(messageDigest.digest());
-		} catch (NoSuchAlgorithmException | IOException e) {
-			Logger.warn(e);
 		}
-		fileMap.put(fileName.replace('\\', '/'), sha256);
-		Logger.info("分析结果 " + sha256);
+		return digest.digest();
+	}
+
+	private byte[] hashMapped(File file) throws IOException {
+		ContentHash digest = contentHash.get();
+		digest.reset();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			for (long position = 0; position < size; position += MAP_WINDOW) {
+				long len = Math.min(MAP_WINDOW, size - position);
+				MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, len);
+				digest.update(window);
+				parsedLen.addAndGet(len);
+				showProgress();
+			}
+		} catch (InternalError e) {
+			// 映射期间文件被截断时访问映射内存会失败
+			throw new IOException("文件在读取期间被修改 " + file, e);
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * 补零到清单中的哈希长度
+	 */
+	private static byte[] widen(byte[] hash) {
+		return hash.length < ManifestWriter.HASH_LEN ? Arrays.copyOf(hash, ManifestWriter.HASH_LEN) : hash;
+	}
+
+	private void addEntry(FileEntry entry) {
+		if (listings != null) {
+			return;
+		}
+		try {
+			sorter.add(entry);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
 	}
 
-	public static int getIgnoreCount() {
-		return ignoreCount;
+	private void showProgress() {
+		long now = System.currentTimeMillis();
+		long last = lastProgress.get();
+		if (now - last < PROGRESS_INTERVAL || !lastProgress.compareAndSet(last, now)) {
+			return;
+		}
+		Logger.out("解析中... 已分析 " + parsedCount.get() + " 个文件，读取 " + parsedLen.get() + " 字节");
 	}
 
 	public static void deleteFile(File file) {
@@ -162,13 +446,4 @@ public class FileParse {
 		}
 		file.delete();
 	}
-
-	private static boolean isIgnore(File file) {
-		for (String f : ignoreFileList) {
-			if (f.equals(file.getAbsolutePath())) {
-				return true;
-			}
-		}
-		return false;
-	}
 }
@@ -18,6 +18,8 @@ package file.sync.tool;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
+import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -35,15 +37,45 @@ public class FileSyncClient {
 	private static final String DOWNLOAD_MODE_STRING = "1";
 	private static final String UPLOAD_MODE_STRING = "2";
 	private static final String YES = "yes";
+	/**
+	 * 每次打包下载请求的最大文件数
+	 */
+	private static final int MAX_BATCH_FILES = 256;
+	/**
+	 * 推迟计算哈希时每次请求服务端计算的文件数
+	 */
+	private static final int HASH_BATCH_FILES = 256;
+	/**
+	 * 监听模式下连接失败后重试的间隔
+	 */
+	private static final long RETRY_DELAY = 10000;
 	private static volatile FileSyncClient fileSyncClient;
 	private FileSyncConfig config;
+	private final RateLimiter rateLimiter;
+	private final TransferOrder transferOrder;
 	private NetTransfer netTransfer;
 	private Socket socket;
 	private int mode;
-	private HashMap<String, String> clientFileMap;
-	private HashMap<String, String> serverFileMap;
-	private List<Map.Entry<String, String>> fileAddList;
-	private List<Map.Entry<String, String>> fileDelList;
+	private int ignoreCount;
+	private EntrySource clientEntries;
+	private MerkleTree clientTree;
+	private IgnoreRules ignoreRules;
+	/**
+	 * 监听模式下服务端已有的不小于差量传输下限的文件，修改后可以差量上传，其他模式为null
+	 */
+	private NavigableSet<String> serverLargeFiles;
+	private EntrySpool fileAddList;
+	private EntrySpool fileDelList;
+	private EntrySpool fileChangeList;
+	/**
+	 * 快速比较时内容相同但修改时间不同的文件，只同步修改时间
+	 */
+	private EntrySpool fileTouchList;
+	private int addCount;
+	private int delCount;
+	private int changeCount;
+	private int noChangeCount;
+	private long transferCount;
 
 	public static void startClient(FileSyncConfig config) {
 		if (fileSyncClient == null) {
@@ -58,49 +90,69 @@ public class FileSyncClient {
 		}
 	}
 
+	/**
+	 * 持续监听同步目录，把本地的变化推送到服务端
+	 *
+	 * @param config 配置
+	 */
+	public static void startWatch(FileSyncConfig config) {
+		if (fileSyncClient == null) {
+			synchronized (FileSyncServer.class) {
+				if (fileSyncClient == null) {
+					fileSyncClient = new FileSyncClient(config);
+				} else {
+					return;
+				}
+			}
+			fileSyncClient.watch();
+		}
+	}
+
 	private FileSyncClient(FileSyncConfig config) {
 		this.config = config;
+		this.rateLimiter = new RateLimiter(config.getSessionBandwidth() * 1024L, null);
+		this.transferOrder = new TransferOrder(config.getPriorityList(), config.getSmallFileSize() * 1024L);
 		this.mode = 0;
-		this.fileAddList = new ArrayList<>();
-		this.fileDelList = new ArrayList<>();
+	}
+
+	/**
+	 * 配置文件修改后调整发送带宽上限，对进行中的传输立即生效
+	 *
+	 * @param newConfig 重新读取的配置
+	 */
+	private void applyBandwidth(FileSyncConfig newConfig) {
+		long rate = newConfig.getSessionBandwidth() * 1024L;
+		if (rate == rateLimiter.getRate()) {
+			return;
+		}
+		rateLimiter.setRate(rate);
+		Logger.info("带宽上限已调整为 " + newConfig.getSessionBandwidth() + "KB/s");
 	}
 
 	private void stop() {
 		try {
-			socket.close();
+			if (netTransfer != null) {
+				netTransfer.flush();
+			}
+			if (socket != null) {
+				socket.close();
+			}
 		} catch (IOException e) {
 			Logger.warn(e);
 		}
+		for (EntrySpool spool : new EntrySpool[]{fileAddList, fileDelList, fileChangeList, fileTouchList}) {
+			if (spool != null) {
+				spool.delete();
+			}
+		}
 		System.exit(0);
 	}
 
 	private void startClient() {
+		FrameCipher.setParallelism(config.getCryptoThreads());
+		ConfigReloader.start(config.getId(), this::applyBandwidth);
 		try {
-			Logger.out("尝试连接到 " + config.getServerHost() + ":" + config.getServerPort() + "...");
-			this.socket = new Socket();
-			this.socket.connect(new InetSocketAddress(config.getServerHost(), config.getServerPort()), 2000);
-			this.netTransfer = new NetTransfer(socket.getInputStream(), socket.getOutputStream(), this.config.getSecretKey());
-		} catch (IOException e) {
-			Logger.error("连接超时，请重试");
-			stop();
-		}
-		Logger.info("连接成功");
-		Logger.info("身份验证中...");
-		try {
-			netTransfer.sendIdentity();
-		} catch (IOException | BadPaddingException | IllegalBlockSizeException e) {
-			Logger.error(e);
-			stop();
-		}
-		try {
-			if (netTransfer.getInt() == StatusCode.DONE) {
-				Logger.info("身份验证成功");
-				String serverHostName = netTransfer.checkIdentity();
-				Logger.info("服务器为 " + serverHostName);
-			} else {
-				Logger.error("身份验证失败！");
-				stop();
-			}
+			connect();
 		} catch (IOException | BadPaddingException | IllegalBlockSizeException e) {
 			Logger.error(e);
 			stop();
@@ -124,74 +176,12 @@ public class FileSyncClient {
 			stop();
 		}
 		try {
-			netTransfer.sendInt(StatusCode.DONE);
-			netTransfer.sendObject(config.getIgnoreList());
-			List<String> ignoreList = (List<String>) netTransfer.getObject();
-			ignoreList.addAll(config.getIgnoreList());
-			this.clientFileMap = FileParse.fileParse(config.getSyncDir(), ignoreList);
-		} catch (IOException | BadPaddingException | IllegalBlockSizeException | ClassNotFoundException e) {
-			Logger.error(e);
-			stop();
-		}
-		Logger.out("等待服务器...");
-		try {
-			this.serverFileMap = (HashMap<String, String>) netTransfer.getObject();
-			Logger.info("收到响应");
+			analyze();
 		} catch (IOException | BadPaddingException | IllegalBlockSizeException | ClassNotFoundException e) {
 			Logger.error(e);
 			stop();
 		}
-		Logger.info("开始差量分析...");
-		int addCount = 0;
-		int delCount = 0;
-		int changeCount = 0;
-		int noChangeCount = 0;
-		if (this.mode == DOWNLOAD_MODE) {
-			for (Map.Entry<String, String> c : clientFileMap.entrySet()) {
-				if (serverFileMap.get(c.getKey()) == null) {
-					fileDelList.add(c);
-					delCount++;
-				}
-			}
-			for (Map.Entry<String, String> s : serverFileMap.entrySet()) {
-				String v = clientFileMap.get(s.getKey());
-				if (v == null) {
-					fileAddList.add(s);
-					addCount++;
-				} else if (v.equals(s.getValue())) {
-					noChangeCount++;
-				} else {
-					fileDelList.add(s);
-					fileAddList.add(s);
-					changeCount++;
-				}
-			}
-		} else if (this.mode == UPLOAD_MODE) {
-			for (Map.Entry<String, String> s : serverFileMap.entrySet()) {
-				if (clientFileMap.get(s.getKey()) == null) {
-					fileDelList.add(s);
-					delCount++;
-				}
-			}
-			for (Map.Entry<String, String> c : clientFileMap.entrySet()) {
-				String v = serverFileMap.get(c.getKey());
-				if (v == null) {
-					fileAddList.add(c);
-					addCount++;
-				} else if (v.equals(c.getValue())) {
-					noChangeCount++;
-				} else {
-					fileDelList.add(c);
-					fileAddList.add(c);
-					changeCount++;
-				}
-			}
-		} else {
-			Logger.error("错误的模式 " + this.mode);
-			stop();
-		}
-		Logger.info("分析完毕");
-		System.out.println("忽略 " + FileParse.getIgnoreCount());
+		System.out.println("忽略 " + this.ignoreCount);
 		System.out.println("新增 " + addCount);
 		System.out.println("删除 " + delCount);
 		System.out.println("修改 " + changeCount);
@@ -199,12 +189,14 @@ public class FileSyncClient {
 		System.out.print("是否继续操作?(yes/no)");
 		input = scanner.nextLine();
 		if (YES.equalsIgnoreCase(input.trim())) {
-			if (this.mode == DOWNLOAD_MODE) {
-				downloadFiles();
-			} else if (this.mode == UPLOAD_MODE) {
-				uploadFiles();
-			} else {
-				Logger.error("错误的模式 " + this.mode);
+			try {
+				if (this.mode == DOWNLOAD_MODE) {
+					downloadFiles();
+				} else {
+					uploadFiles();
+				}
+			} catch (IOException | BadPaddingException | IllegalBlockSizeException e) {
+				Logger.error(e);
 				stop();
 			}
 		} else {
@@ -226,68 +218,825 @@ public class FileSyncClient {
 		stop();
 	}
 
-	private void downloadFiles() {
-		for (Map.Entry<String, String> fileEntry : fileDelList) {
-			File file = new File(this.config.getSyncDir(), fileEntry.getKey());
-			if (file.exists()) {
-				if (file.isDirectory()) {
-					Logger.info("删除目录 " + fileEntry.getKey());
+	/**
+	 * 监听模式：先全量上传一次，之后保持会话，把防抖合并后的变化路径逐批推送到服务端，
+	 * 到达核对间隔、事件溢出或连接出错时结束会话，重新连接并全量核对
+	 */
+	private void watch() {
+		FrameCipher.setParallelism(config.getCryptoThreads());
+		ConfigReloader.start(config.getId(), this::applyBandwidth);
+		this.mode = UPLOAD_MODE;
+		try (DirectoryWatcher watcher = new DirectoryWatcher(new File(config.getSyncDir()))) {
+			while (true) {
+				try {
+					connect();
+					serverLargeFiles = new TreeSet<>();
+					analyze();
+					Logger.info("全量核对 新增 " + addCount + " 删除 " + delCount + " 修改 " + changeCount + " 未变动 " + noChangeCount);
+					uploadFiles();
+					watchChanges(watcher);
+					netTransfer.sendInt(StatusCode.DONE);
+					netTransfer.flush();
+				} catch (IOException | BadPaddingException | IllegalBlockSizeException | ClassNotFoundException e) {
+					Logger.error(e);
+					Logger.warn(RETRY_DELAY / 1000 + " 秒后重新连接");
+					Thread.sleep(RETRY_DELAY);
+				} finally {
+					closeSession();
+				}
+			}
+		} catch (IOException e) {
+			Logger.error(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		stop();
+	}
+
+	/**
+	 * 推送变化直到需要重新全量核对
+	 */
+	private void watchChanges(DirectoryWatcher watcher) throws IOException, BadPaddingException, IllegalBlockSizeException, InterruptedException {
+		long interval = config.getReconcileInterval() * 1000L;
+		long reconcileTime = interval > 0 ? System.currentTimeMillis() + interval : Long.MAX_VALUE;
+		Logger.info("开始监听文件变化");
+		while (true) {
+			long now = System.currentTimeMillis();
+			if (now >= reconcileTime) {
+				Logger.info("定期全量核对");
+				return;
+			}
+			SortedSet<String> changes = watcher.poll(config.getWatchDebounce(), reconcileTime - now);
+			if (watcher.takeOverflow()) {
+				Logger.warn("文件变化事件丢失，重新全量核对");
+				return;
+			}
+			if (!changes.isEmpty()) {
+				pushChanges(changes);
+			}
+		}
+	}
+
+	/**
+	 * 根据变化路径的当前状态推送到服务端：已不存在的删除，目录创建，文件按传输顺序上传
+	 *
+	 * @param changes 按路径排序的变化路径
+	 */
+	private void pushChanges(SortedSet<String> changes) throws IOException, BadPaddingException, IllegalBlockSizeException {
+		List<TransferTask> tasks = new ArrayList<>();
+		Map<TransferTask, Long> keys = new HashMap<>(16);
+		int count = 0;
+		for (String path : changes) {
+			if (isIgnored(path)) {
+				continue;
+			}
+			count++;
+			File file = new File(config.getSyncDir(), path);
+			if (!file.exists()) {
+				Logger.info("删除服务端文件 " + path);
+				netTransfer.sendInt(StatusCode.DELETE);
+				netTransfer.sendString(path);
+				forgetServerFiles(path);
+			} else if (file.isDirectory()) {
+				netTransfer.sendInt(StatusCode.DIR);
+				netTransfer.sendString(path);
+				forgetServerFiles(path);
+			} else {
+				long size = file.length();
+				// 服务端还没有的文件没有差量基准，直接上传完整文件
+				TransferTask task = new TransferTask(path, size >= DeltaSync.MIN_DELTA_SIZE && serverLargeFiles.contains(path));
+				tasks.add(task);
+				keys.put(task, transferOrder.key(path, size, task.delta));
+				if (size >= DeltaSync.MIN_DELTA_SIZE) {
+					serverLargeFiles.add(path);
 				} else {
-					Logger.info("删除文件 " + fileEntry.getKey());
+					serverLargeFiles.remove(path);
 				}
-				FileParse.deleteFile(file);
 			}
 		}
+		if (count == 0) {
+			return;
+		}
+		tasks.sort(Comparator.comparing(keys::get));
+		Iterator<TransferTask> iterator = tasks.iterator();
+		transferWorker(netTransfer, new TransferScheduler<>(() -> iterator.hasNext() ? iterator.next() : null, 1), 0, false);
+		netTransfer.flush();
+		Logger.info("已推送 " + count + " 处变化");
+	}
+
+	/**
+	 * 服务端的路径被删除或变为目录，其中的文件不再能作为差量基准
+	 */
+	private void forgetServerFiles(String path) {
+		serverLargeFiles.remove(path);
+		// '0' 紧跟在 '/' 之后，区间内恰好是该目录下的所有路径
+		serverLargeFiles.subSet(path + "/", path + "0").clear();
+	}
+
+	private boolean isIgnored(String path) {
+		if (FileIndex.isIndexFile(path) || PartialFile.isPartialFile(path)) {
+			return true;
+		}
+		// 已删除的路径无法区分文件和目录，按目录检查，只匹配目录的规则也会生效
+		return ignoreRules.isExcluded(path, !new File(config.getSyncDir(), path).isFile());
+	}
+
+	/**
+	 * 关闭当前会话的连接并清理分析结果，准备下一次全量核对
+	 */
+	private void closeSession() {
+		try {
+			if (socket != null) {
+				socket.close();
+			}
+		} catch (IOException e) {
+			Logger.warn(e);
+		}
+		for (EntrySpool spool : new EntrySpool[]{fileAddList, fileDelList, fileChangeList, fileTouchList}) {
+			if (spool != null) {
+				spool.delete();
+			}
+		}
+		socket = null;
+		netTransfer = null;
+		clientTree = null;
+		clientEntries = null;
+		fileAddList = null;
+		fileDelList = null;
+		fileChangeList = null;
+		fileTouchList = null;
+		addCount = 0;
+		delCount = 0;
+		changeCount = 0;
+		noChangeCount = 0;
+		transferCount = 0;
+	}
+
+	/**
+	 * 连接服务端，完成身份验证和功能协商
+	 */
+	private void connect() throws IOException, BadPaddingException, IllegalBlockSizeException {
+		Logger.out("尝试连接到 " + config.getServerHost() + ":" + config.getServerPort() + "...");
+		this.socket = new Socket();
 		try {
-			for (Map.Entry<String, String> fileEntry : fileAddList) {
-				if (fileEntry.getValue().equalsIgnoreCase(FileParse.DIR)) {
-					Logger.info("创建目录 " + fileEntry.getKey());
-					new File(this.config.getSyncDir(), fileEntry.getKey()).mkdirs();
+			this.socket.connect(new InetSocketAddress(config.getServerHost(), config.getServerPort()), 2000);
+		} catch (IOException e) {
+			throw new IOException("连接超时，请重试", e);
+		}
+		this.netTransfer = new NetTransfer(socket.getInputStream(), socket.getOutputStream(), this.config.getSecretKey());
+		netTransfer.setRateLimiter(rateLimiter);
+		Logger.info("连接成功");
+		Logger.info("身份验证中...");
+		netTransfer.sendIdentity();
+		if (netTransfer.getInt() != StatusCode.DONE) {
+			throw new IOException("身份验证失败！");
+		}
+		Logger.info("身份验证成功");
+		String serverHostName = netTransfer.checkIdentity();
+		Logger.info("服务器为 " + serverHostName);
+		netTransfer.requestFeatures(NetTransfer.localFeatures(this.config));
+	}
+
+	/**
+	 * 开始会话，交换忽略列表，解析本地目录并与服务端比较
+	 */
+	private void analyze() throws IOException, BadPaddingException, IllegalBlockSizeException, ClassNotFoundException {
+		netTransfer.sendInt(StatusCode.DONE);
+		if (netTransfer.getInt() != StatusCode.DONE) {
+			throw new IOException("服务端会话数已满，请稍后重试");
+		}
+		netTransfer.sendObject(config.getIgnoreList());
+		List<String> ignoreList = (List<String>) netTransfer.getObject();
+		ignoreList.addAll(config.getIgnoreList());
+		this.ignoreRules = new IgnoreRules(ignoreList);
+		FileParse fileParse = new FileParse(config.getSyncDir(), ignoreList, config.getParseThreads(), config.getSortRunSize(),
+				netTransfer.hashAlgorithm(), netTransfer.hasFeature(NetTransfer.FEATURE_QUICK_CHECK));
+		if (netTransfer.hasFeature(NetTransfer.FEATURE_MERKLE)) {
+			this.clientTree = fileParse.parseTree();
+		} else if (netTransfer.deferHash()) {
+			this.clientEntries = fileParse.parseMetadata();
+		} else {
+			this.clientEntries = fileParse.parse();
+		}
+		this.ignoreCount = fileParse.getIgnoreCount();
+		Logger.out("等待服务器...");
+		Logger.info("开始差量分析...");
+		this.fileAddList = new EntrySpool(ManifestWriter.HASH_LEN);
+		this.fileDelList = new EntrySpool(ManifestWriter.HASH_LEN);
+		this.fileChangeList = new EntrySpool(ManifestWriter.HASH_LEN);
+		this.fileTouchList = new EntrySpool(ManifestWriter.HASH_LEN);
+		DiffCollector collector = new DiffCollector();
+		EntrySpool candidates = netTransfer.hashExchange() ? new EntrySpool(ManifestWriter.HASH_LEN) : null;
+		try {
+			if (clientTree != null) {
+				byte[] serverRoot = MerkleTree.readRoot(netTransfer);
+				DiffEngine.diffTree(clientTree, serverRoot, netTransfer, this.mode == UPLOAD_MODE, collector, candidates);
+			} else {
+				try (EntrySource localEntries = clientEntries;
+					 ManifestReader serverEntries = new ManifestReader(netTransfer.frameInput())) {
+					if (this.mode == DOWNLOAD_MODE) {
+						DiffEngine.diff(serverEntries, localEntries, collector, candidates);
+					} else {
+						DiffEngine.diff(localEntries, serverEntries, collector, candidates);
+					}
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			if (candidates != null) {
+				candidates.delete();
+			}
+			throw e;
+		}
+		if (candidates != null) {
+			compareHashes(fileParse, candidates, collector);
+		}
+		Logger.info("分析完毕");
+	}
+
+	/**
+	 * 两端大小相同的文件分批请求服务端计算哈希，等待期间计算本地的哈希。
+	 * 快速比较时这些文件的修改时间不同，内容相同的只同步修改时间，之后不必再比较哈希
+	 *
+	 * @param fileParse  本地解析器
+	 * @param candidates 两端大小相同的文件
+	 * @param collector  比较结果
+	 */
+	private void compareHashes(FileParse fileParse, EntrySpool candidates, DiffCollector collector)
+			throws IOException, BadPaddingException, IllegalBlockSizeException {
+		Logger.info("比较 " + candidates.size() + " 个大小相同的文件的哈希");
+		try (EntrySource entries = candidates.open()) {
+			List<FileEntry> batch = new ArrayList<>(HASH_BATCH_FILES);
+			FileEntry entry;
+			do {
+				entry = entries.read();
+				if (entry != null) {
+					batch.add(entry);
+				}
+				if (batch.size() == HASH_BATCH_FILES || entry == null && !batch.isEmpty()) {
+					compareBatch(fileParse, batch, collector);
+					batch.clear();
+				}
+			} while (entry != null);
+		} finally {
+			candidates.delete();
+		}
+		netTransfer.sendStrings(Collections.emptyList());
+		netTransfer.flush();
+		fileParse.finish();
+	}
+
+	private void compareBatch(FileParse fileParse, List<FileEntry> batch, DiffCollector collector)
+			throws IOException, BadPaddingException, IllegalBlockSizeException {
+		List<String> paths = new ArrayList<>(batch.size());
+		for (FileEntry entry : batch) {
+			paths.add(entry.getPath());
+		}
+		netTransfer.sendStrings(paths);
+		netTransfer.flush();
+		List<byte[]> localHashes = fileParse.hash(paths);
+		try (DataInputStream input = new DataInputStream(netTransfer.frameInput())) {
+			for (int i = 0; i < batch.size(); i++) {
+				byte[] remoteHash = new byte[ManifestWriter.HASH_LEN];
+				input.readFully(remoteHash);
+				FileEntry entry = batch.get(i);
+				if (Arrays.equals(localHashes.get(i), remoteHash)) {
+					collector.onSame(entry);
+					if (netTransfer.hasFeature(NetTransfer.FEATURE_QUICK_CHECK) && entry.getMtime() > 0) {
+						fileTouchList.add(entry);
+					}
 				} else {
-					Logger.info("获取文件 " + fileEntry.getKey());
-					netTransfer.sendInt(StatusCode.GET);
-					netTransfer.sendString(fileEntry.getKey());
-					netTransfer.getFile(new File(this.config.getSyncDir(), fileEntry.getKey()));
+					collector.onChange(entry, entry);
 				}
 			}
-		} catch (IOException | BadPaddingException | IllegalBlockSizeException e) {
-			Logger.error(e);
-			stop();
 		}
 	}
 
-	private void uploadFiles() {
-		for (Map.Entry<String, String> fileEntry : fileDelList) {
-			File file = new File(this.config.getSyncDir(), fileEntry.getKey());
-			if (fileEntry.getValue().equalsIgnoreCase(FileParse.DIR)) {
-				Logger.info("删除服务端目录 " + fileEntry.getKey());
+	/**
+	 * 收集差量分析结果，源端为同步后的期望状态，
+	 * 较大的修改文件走差量传输，其余的删除后重新传输
+	 */
+	private class DiffCollector implements DiffEngine.Listener {
+		@Override
+		public void onAdd(FileEntry source) throws IOException {
+			fileAddList.add(source);
+			addCount++;
+			recordServerFile(source);
+			if (!source.isDir()) {
+				transferCount++;
+			}
+		}
+
+		@Override
+		public void onDelete(FileEntry target) throws IOException {
+			fileDelList.add(target);
+			delCount++;
+		}
+
+		@Override
+		public void onChange(FileEntry source, FileEntry target) throws IOException {
+			changeCount++;
+			if (!source.isDir() && !target.isDir()
+					&& new File(config.getSyncDir(), source.getPath()).length() >= DeltaSync.MIN_DELTA_SIZE) {
+				fileChangeList.add(source);
 			} else {
-				Logger.info("删除服务端文件 " + fileEntry.getKey());
+				fileDelList.add(target);
+				fileAddList.add(source);
 			}
-			try {
+			if (!source.isDir()) {
+				transferCount++;
+			}
+			recordServerFile(source);
+		}
+
+		@Override
+		public void onSame(FileEntry source) {
+			noChangeCount++;
+			recordServerFile(source);
+		}
+
+		/**
+		 * 监听模式下全量上传后服务端与本地一致，记录之后可以差量上传的文件
+		 */
+		private void recordServerFile(FileEntry source) {
+			if (serverLargeFiles != null && !source.isDir() && source.getSize() >= DeltaSync.MIN_DELTA_SIZE) {
+				serverLargeFiles.add(source.getPath());
+			}
+		}
+	}
+
+	private void downloadFiles() throws IOException, BadPaddingException, IllegalBlockSizeException {
+		try (EntrySource entries = fileDelList.open()) {
+			FileEntry fileEntry;
+			while ((fileEntry = entries.read()) != null) {
+				File file = new File(this.config.getSyncDir(), fileEntry.getPath());
+				if (file.exists()) {
+					if (file.isDirectory()) {
+						Logger.info("删除目录 " + fileEntry.getPath());
+					} else {
+						Logger.info("删除文件 " + fileEntry.getPath());
+					}
+					FileParse.deleteFile(file);
+				}
+			}
+		}
+		try (EntrySource entries = fileAddList.open()) {
+			FileEntry fileEntry;
+			while ((fileEntry = entries.read()) != null) {
+				if (fileEntry.isDir()) {
+					Logger.info("创建目录 " + fileEntry.getPath());
+					new File(this.config.getSyncDir(), fileEntry.getPath()).mkdirs();
+				}
+			}
+		}
+		try (EntrySource entries = fileTouchList.open()) {
+			FileEntry fileEntry;
+			while ((fileEntry = entries.read()) != null) {
+				File file = new File(this.config.getSyncDir(), fileEntry.getPath());
+				if (file.isFile()) {
+					Logger.info("更新修改时间 " + fileEntry.getPath());
+					file.setLastModified(fileEntry.getMtime());
+				}
+			}
+		}
+		transferFiles(true);
+	}
+
+	private void uploadFiles() throws IOException, BadPaddingException, IllegalBlockSizeException {
+		try (EntrySource entries = fileDelList.open()) {
+			FileEntry fileEntry;
+			while ((fileEntry = entries.read()) != null) {
+				if (fileEntry.isDir()) {
+					Logger.info("删除服务端目录 " + fileEntry.getPath());
+				} else {
+					Logger.info("删除服务端文件 " + fileEntry.getPath());
+				}
 				netTransfer.sendInt(StatusCode.DELETE);
-				netTransfer.sendString(fileEntry.getKey());
-			} catch (IOException | BadPaddingException | IllegalBlockSizeException e) {
-				Logger.error(e);
-				stop();
+				netTransfer.sendString(fileEntry.getPath());
 			}
 		}
-		try {
-			for (Map.Entry<String, String> fileEntry : fileAddList) {
-				if (fileEntry.getValue().equalsIgnoreCase(FileParse.DIR)) {
-					Logger.info("创建服务端目录 " + fileEntry.getKey());
+		try (EntrySource entries = fileAddList.open()) {
+			FileEntry fileEntry;
+			while ((fileEntry = entries.read()) != null) {
+				if (fileEntry.isDir()) {
+					Logger.info("创建服务端目录 " + fileEntry.getPath());
 					netTransfer.sendInt(StatusCode.DIR);
-					netTransfer.sendString(fileEntry.getKey());
+					netTransfer.sendString(fileEntry.getPath());
+				}
+			}
+		}
+		try (EntrySource entries = fileTouchList.open()) {
+			FileEntry fileEntry;
+			while ((fileEntry = entries.read()) != null) {
+				Logger.info("更新服务端修改时间 " + fileEntry.getPath());
+				netTransfer.sendInt(StatusCode.MTIME);
+				netTransfer.sendString(fileEntry.getPath());
+				netTransfer.sendLong(fileEntry.getMtime());
+			}
+		}
+		transferFiles(false);
+	}
+
+	/**
+	 * 传输新增和修改的文件，配置了数据连接时由多个连接并行传输。
+	 * 目录已经在此之前创建，服务端按顺序处理控制连接上的命令，
+	 * 处理到建立数据连接的命令时目录已经全部创建完毕
+	 *
+	 * @param download 是否为下载模式
+	 */
+	private void transferFiles(boolean download) throws IOException, BadPaddingException, IllegalBlockSizeException {
+		int connections = (int) Math.min(this.config.getDataConnections(), transferCount);
+		// 只有一个连接时大文件没有专用连接，按大小排在小文件之后
+		boolean bulkLane = connections > 1 && transferOrder.isSizeAware();
+		try (TaskSource tasks = new TaskSource(bulkLane)) {
+			transferFiles(tasks.lanes(), connections, download);
+		}
+	}
+
+	private void transferFiles(List<TransferScheduler.Source<TransferTask>> lanes, int connections, boolean download)
+			throws IOException, BadPaddingException, IllegalBlockSizeException {
+		if (connections == 0) {
+			transferWorker(netTransfer, new TransferScheduler<>(lanes, 1), 0, download);
+			return;
+		}
+		TransferScheduler<TransferTask> scheduler = new TransferScheduler<>(lanes, connections);
+		netTransfer.sendInt(StatusCode.CONNECT);
+		netTransfer.sendInt(connections);
+		String token = netTransfer.getString();
+		List<Thread> threads = new ArrayList<>(connections);
+		List<Exception> failures = Collections.synchronizedList(new ArrayList<>());
+		for (int i = 0; i < connections; i++) {
+			Socket dataSocket = new Socket();
+			dataSocket.connect(new InetSocketAddress(config.getServerHost(), config.getServerPort()), 2000);
+			NetTransfer dataTransfer = new NetTransfer(dataSocket.getInputStream(), dataSocket.getOutputStream(), this.config.getSecretKey());
+			dataTransfer.setRateLimiter(rateLimiter);
+			dataTransfer.sendIdentity();
+			if (dataTransfer.getInt() != StatusCode.DONE) {
+				dataSocket.close();
+				throw new IOException("数据连接身份验证失败");
+			}
+			dataTransfer.checkIdentity();
+			dataTransfer.requestFeatures(NetTransfer.localFeatures(this.config));
+			dataTransfer.sendInt(StatusCode.JOIN);
+			dataTransfer.sendString(token);
+			if (dataTransfer.getInt() != StatusCode.DONE) {
+				dataSocket.close();
+				throw new IOException("数据连接加入会话失败");
+			}
+			int worker = i;
+			if (scheduler.laneOf(worker) > 0) {
+				Logger.info("数据连接 " + worker + " 优先传输大文件");
+			}
+			Thread thread = new Thread(() -> {
+				try {
+					transferWorker(dataTransfer, scheduler, worker, download);
+					dataTransfer.sendInt(StatusCode.DONE);
+					dataTransfer.flush();
+				} catch (IOException | BadPaddingException | IllegalBlockSizeException e) {
+					failures.add(e);
+				} finally {
+					try {
+						dataSocket.close();
+					} catch (IOException e) {
+						Logger.warn(e);
+					}
+				}
+			}, "transfer-" + i);
+			thread.start();
+			threads.add(thread);
+		}
+		Logger.info("已建立 " + connections + " 个数据连接");
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+		}
+		if (!failures.isEmpty()) {
+			throw new IOException(failures.get(0));
+		}
+	}
+
+	/**
+	 * 在一个连接上循环领取并传输文件，下载时保持多个请求同时在途，
+	 * 协商启用打包传输时小文件打包成一帧传输
+	 */
+	private void transferWorker(NetTransfer transfer, TransferScheduler<TransferTask> scheduler, int worker, boolean download)
+			throws IOException, BadPaddingException, IllegalBlockSizeException {
+		boolean batching = transfer.hasFeature(NetTransfer.FEATURE_BATCH);
+		boolean resuming = transfer.hasFeature(NetTransfer.FEATURE_RESUME);
+		File syncDir = new File(this.config.getSyncDir());
+		if (!download) {
+			int maxFileSize = Math.min(NetTransfer.BATCH_FILE_SIZE, this.config.getBatchSize());
+			List<String> batch = new ArrayList<>();
+			long batchLen = 0;
+			TransferTask task;
+			while ((task = scheduler.next(worker)) != null) {
+				File file = new File(syncDir, task.path);
+				if (task.delta) {
+					Logger.info("差量上传文件 " + task.path);
+					transfer.sendInt(StatusCode.DELTA_PUT);
+					transfer.sendString(task.path);
+					DeltaSync.sendDelta(file, transfer);
+					if (transfer.getInt() == StatusCode.DONE) {
+						continue;
+					}
+					Logger.warn("差量校验失败，重新上传完整文件 " + task.path);
+				} else if (batching && file.length() <= maxFileSize) {
+					if (batchLen + file.length() > this.config.getBatchSize()) {
+						uploadBatch(transfer, batch);
+						batch.clear();
+						batchLen = 0;
+					}
+					batch.add(task.path);
+					batchLen += file.length();
+					continue;
+				}
+				if (resuming && file.length() >= PartialFile.RESUME_MIN_SIZE) {
+					resumeUpload(transfer, task.path, file);
 				} else {
-					Logger.info("上传文件 " + fileEntry.getKey());
-					netTransfer.sendInt(StatusCode.PUT);
-					netTransfer.sendString(fileEntry.getKey());
-					netTransfer.sendFile(new File(this.config.getSyncDir(), fileEntry.getKey()));
+					uploadFile(transfer, task.path, file);
 				}
 			}
-		} catch (IOException | BadPaddingException | IllegalBlockSizeException e) {
-			Logger.error(e);
-			stop();
+			if (!batch.isEmpty()) {
+				uploadBatch(transfer, batch);
+			}
+			return;
+		}
+		int window = this.config.getDownloadWindow();
+		Deque<TransferTask> pendingList = new ArrayDeque<>(window);
+		TransferTask deltaTask = null;
+		List<String> batch = new ArrayList<>();
+		while (true) {
+			boolean requested = false;
+			TransferTask task;
+			while (deltaTask == null && pendingList.size() < window && (task = scheduler.next(worker)) != null) {
+				if (task.delta) {
+					deltaTask = task;
+				} else if (batching) {
+					batch.add(task.path);
+					if (batch.size() == MAX_BATCH_FILES) {
+						pendingList.add(requestBatch(transfer, batch));
+						batch = new ArrayList<>();
+						requested = true;
+					}
+				} else {
+					pendingList.add(requestFile(transfer, task.path, resuming));
+					requested = true;
+				}
+			}
+			if (!batch.isEmpty()) {
+				pendingList.add(requestBatch(transfer, batch));
+				batch = new ArrayList<>();
+				requested = true;
+			}
+			if (requested) {
+				transfer.flush();
+			}
+			task = pendingList.poll();
+			if (task != null && task.batch != null) {
+				Logger.info("获取打包文件 " + task.batch.size() + " 个");
+				// 推迟的文件在下一轮重新打包请求
+				for (String path : transfer.getBatch(syncDir, batch)) {
+					pendingList.add(requestFile(transfer, path, resuming));
+				}
+			} else if (task != null && task.partialFile != null) {
+				long offset = transfer.getLong();
+				Logger.info(offset > 0 ? "继续获取文件 " + task.path + " 从 " + offset : "获取文件 " + task.path);
+				transfer.getFile(task.partialFile, offset);
+			} else if (task != null) {
+				Logger.info("获取文件 " + task.path);
+				transfer.getFile(new File(syncDir, task.path));
+			} else if (deltaTask != null) {
+				Logger.info("差量获取文件 " + deltaTask.path);
+				File file = new File(syncDir, deltaTask.path);
+				transfer.sendInt(StatusCode.DELTA_GET);
+				transfer.sendString(deltaTask.path);
+				DeltaSync.sendSignature(file, transfer);
+				if (!DeltaSync.getDelta(file, transfer)) {
+					Logger.warn("差量校验失败，重新获取完整文件 " + deltaTask.path);
+					transfer.sendInt(StatusCode.GET);
+					transfer.sendString(deltaTask.path);
+					transfer.getFile(file);
+				}
+				deltaTask = null;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private void uploadFile(NetTransfer transfer, String path, File file) throws IOException, BadPaddingException, IllegalBlockSizeException {
+		Logger.info("上传文件 " + path);
+		transfer.sendInt(StatusCode.PUT);
+		transfer.sendString(path);
+		transfer.sendFile(file);
+	}
+
+	/**
+	 * 询问服务端上次中断的位置，本地文件开头与服务端已接收的数据一致时从该位置继续上传
+	 */
+	private void resumeUpload(NetTransfer transfer, String path, File file) throws IOException, BadPaddingException, IllegalBlockSizeException {
+		transfer.sendInt(StatusCode.PUT_FROM);
+		transfer.sendString(path);
+		long offset = transfer.getLong();
+		String hash = transfer.getString();
+		if (offset > 0 && !hash.equals(PartialFile.prefixHash(file, offset))) {
+			offset = 0;
+		}
+		Logger.info(offset > 0 ? "继续上传文件 " + path + " 从 " + offset : "上传文件 " + path);
+		transfer.sendLong(offset);
+		transfer.sendFile(file, offset);
+	}
+
+	/**
+	 * 请求下载文件，本地有上次中断留下的检查点时请求从检查点继续
+	 */
+	private TransferTask requestFile(NetTransfer transfer, String path, boolean resuming) throws IOException, BadPaddingException, IllegalBlockSizeException {
+		PartialFile partialFile = new PartialFile(new File(this.config.getSyncDir(), path));
+		if (resuming && partialFile.load()) {
+			transfer.sendInt(StatusCode.GET_FROM);
+			transfer.sendString(path);
+			transfer.sendLong(partialFile.getCheckpointOffset());
+			transfer.sendString(partialFile.getCheckpointHash());
+			return new TransferTask(path, partialFile);
+		}
+		transfer.sendInt(StatusCode.GET);
+		transfer.sendString(path);
+		return new TransferTask(path, false);
+	}
+
+	private void uploadBatch(NetTransfer transfer, List<String> batch) throws IOException, BadPaddingException, IllegalBlockSizeException {
+		Logger.info("打包上传 " + batch.size() + " 个文件");
+		transfer.sendInt(StatusCode.BATCH_PUT);
+		File syncDir = new File(this.config.getSyncDir());
+		for (String path : transfer.sendBatch(syncDir, batch, this.config.getBatchSize())) {
+			uploadFile(transfer, path, new File(syncDir, path));
+		}
+	}
+
+	private TransferTask requestBatch(NetTransfer transfer, List<String> batch) throws IOException, BadPaddingException, IllegalBlockSizeException {
+		transfer.sendInt(StatusCode.BATCH_GET);
+		transfer.sendStrings(batch);
+		return new TransferTask(batch);
+	}
+
+	/**
+	 * 按传输顺序把新增文件和修改文件分到多个临时列表，每条车道按排序键依次读取自己的列表生成传输任务
+	 */
+	private class TaskSource implements Closeable {
+		private final List<TreeMap<Long, EntrySpool>> spools;
+		private final List<LaneSource> sources;
+
+		/**
+		 * @param bulkLane 是否把大文件分到单独的车道
+		 */
+		private TaskSource(boolean bulkLane) throws IOException {
+			this.spools = new ArrayList<>(2);
+			this.sources = new ArrayList<>(2);
+			spools.add(new TreeMap<>());
+			if (bulkLane) {
+				spools.add(new TreeMap<>());
+			}
+			try {
+				distribute(fileAddList, false);
+				distribute(fileChangeList, true);
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+			if (bulkLane) {
+				Logger.info("小文件 " + count(spools.get(0)) + " 个，大文件 " + count(spools.get(1)) + " 个");
+			}
+		}
+
+		private void distribute(EntrySpool list, boolean change) throws IOException {
+			try (EntrySource entries = list.open()) {
+				FileEntry fileEntry;
+				while ((fileEntry = entries.read()) != null) {
+					if (fileEntry.isDir()) {
+						continue;
+					}
+					long size = fileEntry.getSize();
+					if (size < 0 && (change || mode == UPLOAD_MODE)) {
+						size = new File(config.getSyncDir(), fileEntry.getPath()).length();
+					}
+					int lane = spools.size() > 1 && !transferOrder.isSmall(size) ? 1 : 0;
+					long key = transferOrder.key(fileEntry.getPath(), size, change);
+					EntrySpool spool = spools.get(lane).get(key);
+					if (spool == null) {
+						spool = new EntrySpool(ManifestWriter.HASH_LEN);
+						spools.get(lane).put(key, spool);
+					}
+					spool.add(fileEntry);
+				}
+			}
+		}
+
+		private long count(Map<Long, EntrySpool> lane) {
+			long count = 0;
+			for (EntrySpool spool : lane.values()) {
+				count += spool.size();
+			}
+			return count;
+		}
+
+		private List<TransferScheduler.Source<TransferTask>> lanes() {
+			List<TransferScheduler.Source<TransferTask>> lanes = new ArrayList<>(spools.size());
+			for (TreeMap<Long, EntrySpool> lane : spools) {
+				LaneSource source = new LaneSource(lane);
+				sources.add(source);
+				lanes.add(source);
+			}
+			return lanes;
+		}
+
+		@Override
+		public void close() throws IOException {
+			for (LaneSource source : sources) {
+				source.close();
+			}
+			for (TreeMap<Long, EntrySpool> lane : spools) {
+				for (EntrySpool spool : lane.values()) {
+					spool.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * 按排序键依次读取一条车道的各个列表
+	 */
+	private static class LaneSource implements TransferScheduler.Source<TransferTask>, Closeable {
+		private final Iterator<Map.Entry<Long, EntrySpool>> spools;
+		private EntrySource entries;
+		private boolean change;
+
+		private LaneSource(TreeMap<Long, EntrySpool> lane) {
+			this.spools = lane.entrySet().iterator();
+		}
+
+		@Override
+		public TransferTask next() throws IOException {
+			while (true) {
+				if (entries != null) {
+					FileEntry fileEntry = entries.read();
+					if (fileEntry != null) {
+						return new TransferTask(fileEntry.getPath(), change);
+					}
+					entries.close();
+					entries = null;
+				}
+				if (!spools.hasNext()) {
+					return null;
+				}
+				Map.Entry<Long, EntrySpool> spool = spools.next();
+				change = TransferOrder.isChange(spool.getKey());
+				entries = spool.getValue().open();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (entries != null) {
+				entries.close();
+				entries = null;
+			}
+		}
+	}
+
+	private static class TransferTask {
+		private final String path;
+		private final boolean delta;
+		/**
+		 * 打包下载的一组文件，普通任务为null
+		 */
+		private final List<String> batch;
+		/**
+		 * 从检查点继续下载时的临时文件，普通任务为null
+		 */
+		private final PartialFile partialFile;
+
+		private TransferTask(String path, boolean delta) {
+			this.path = path;
+			this.delta = delta;
+			this.batch = null;
+			this.partialFile = null;
+		}
+
+		private TransferTask(List<String> batch) {
+			this.path = null;
+			this.delta = false;
+			this.batch = batch;
+			this.partialFile = null;
+		}
+
+		private TransferTask(String path, PartialFile partialFile) {
+			this.path = path;
+			this.delta = false;
+			this.batch = null;
+			this.partialFile = partialFile;
 		}
 	}
 }
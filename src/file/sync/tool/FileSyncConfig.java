@@ -35,6 +35,8 @@ public class FileSyncConfig implements Serializable {
 	private static final int MIN_PORT = 0;
 	private static final int MAX_PORT = 65535;
 	private static final int SECRET_KEY_LENGTH = 44;
+	private static final int MIN_SORT_RUN_SIZE = 1000;
+	private static final int MAX_BATCH_SIZE = 16 * 1024 * 1024;
 	private static List<FileSyncConfig> configs;
 
 	/**
@@ -61,6 +63,82 @@ public class FileSyncConfig implements Serializable {
 	 * 安全密钥
 	 */
 	private String secretKey;
+	/**
+	 * 目录解析线程数，0表示使用处理器核心数
+	 */
+	private Integer parseThreads;
+	/**
+	 * 下载时同时发出的请求数
+	 */
+	private Integer downloadWindow;
+	/**
+	 * 控制连接之外并行传输文件的数据连接数，0表示只使用控制连接
+	 */
+	private Integer dataConnections;
+	/**
+	 * 是否启用传输压缩，双方都启用时生效
+	 */
+	private Boolean compress;
+	/**
+	 * 文件列表排序时内存中最多缓存的条目数，超出部分写入临时文件
+	 */
+	private Integer sortRunSize;
+	/**
+	 * 是否按目录哈希树逐层比较，双方都启用时生效，需要把文件列表全部保存在内存中
+	 */
+	private Boolean merkle;
+	/**
+	 * 服务端同时处理的最大会话数
+	 */
+	private Integer maxSessions;
+	/**
+	 * 服务端选择器引擎的工作线程数，0表示每个连接使用一个线程
+	 */
+	private Integer selectorWorkers;
+	/**
+	 * 是否使用会话密钥和AES-GCM认证加密，双方都启用时生效
+	 */
+	private Boolean aesGcm;
+	/**
+	 * 并行加解密的线程数，0表示使用处理器核心数，1表示不并行
+	 */
+	private Integer cryptoThreads;
+	/**
+	 * 小文件打包传输时每个包中文件内容的总长度上限，0表示不打包
+	 */
+	private Integer batchSize;
+	/**
+	 * 监听模式下合并文件变化事件的防抖间隔，毫秒
+	 */
+	private Integer watchDebounce;
+	/**
+	 * 监听模式下定期全量核对的间隔，秒，0表示只在事件丢失或重新连接时核对
+	 */
+	private Integer reconcileInterval;
+	/**
+	 * 是否使用快速的非加密哈希比较文件内容，双方都启用时生效
+	 */
+	private Boolean fastHash;
+	/**
+	 * 是否始终比较文件内容哈希，否则按大小和修改时间快速比较，双方都不要求内容比较时才快速比较
+	 */
+	private Boolean checksum;
+	/**
+	 * 每个会话发送数据的带宽上限，KB/s，0表示不限制。客户端限制自己的发送，服务端分别限制每个会话
+	 */
+	private Integer sessionBandwidth;
+	/**
+	 * 服务端所有会话合计发送数据的带宽上限，KB/s，0表示不限制，由正在发送的会话平均分配
+	 */
+	private Integer serverBandwidth;
+	/**
+	 * 小文件上限，KB，小文件先于大文件传输，有多个数据连接时大文件由专门的连接传输，0表示按路径顺序传输
+	 */
+	private Integer smallFileSize;
+	/**
+	 * 优先传输的文件规则，写法与忽略文件列表相同，排在前面的规则优先
+	 */
+	private List<String> priorityList;
 
 	/**
 	 * 初始化配置
@@ -69,12 +147,8 @@ public class FileSyncConfig implements Serializable {
 		File configFile = new File(CONF_FILE);
 		if (configFile.exists()) {
 			Logger.info("加载配置中...");
-			StringBuilder jsonStrBuilder = new StringBuilder();
-			try (Scanner scanner = new Scanner(configFile, "UTF-8")) {
-				while (scanner.hasNextLine()) {
-					jsonStrBuilder.append(scanner.nextLine());
-				}
-				configs = JSON.parseArray(jsonStrBuilder.toString(), FileSyncConfig.class);
+			try {
+				configs = readConfigFile();
 				Logger.info("配置加载完毕");
 			} catch (FileNotFoundException e) {
 				Logger.error(e);
@@ -85,6 +159,48 @@ public class FileSyncConfig implements Serializable {
 		}
 	}
 
+	/**
+	 * 重新读取配置文件中指定编号的配置，不影响已加载的配置列表
+	 *
+	 * @param id 配置编号
+	 * @return 配置对象，文件无法读取或没有该配置时返回null
+	 */
+	public static FileSyncConfig reloadConfig(String id) {
+		List<FileSyncConfig> list;
+		try {
+			list = readConfigFile();
+		} catch (FileNotFoundException | RuntimeException e) {
+			Logger.warn(e);
+			return null;
+		}
+		if (list == null) {
+			return null;
+		}
+		for (FileSyncConfig config : list) {
+			if (id.equals(config.getId())) {
+				return config;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return 配置文件的修改时间，文件不存在时为0
+	 */
+	public static long configFileModified() {
+		return new File(CONF_FILE).lastModified();
+	}
+
+	private static List<FileSyncConfig> readConfigFile() throws FileNotFoundException {
+		StringBuilder jsonStrBuilder = new StringBuilder();
+		try (Scanner scanner = new Scanner(new File(CONF_FILE), "UTF-8")) {
+			while (scanner.hasNextLine()) {
+				jsonStrBuilder.append(scanner.nextLine());
+			}
+		}
+		return JSON.parseArray(jsonStrBuilder.toString(), FileSyncConfig.class);
+	}
+
 	/**
 	 * 保存配置
 	 */
@@ -176,6 +292,63 @@ public class FileSyncConfig implements Serializable {
 		if (this.secretKey == null) {
 			throw new NullPointerException("密钥配置缺失");
 		}
+		if (this.parseThreads == null || this.parseThreads < 0) {
+			throw new Exception("解析线程数配置错误");
+		}
+		if (this.downloadWindow == null || this.downloadWindow < 1) {
+			throw new Exception("下载窗口配置错误");
+		}
+		if (this.dataConnections == null || this.dataConnections < 0 || this.dataConnections > FileSyncServer.MAX_DATA_CONNECTIONS) {
+			throw new Exception("数据连接数配置错误");
+		}
+		if (this.compress == null) {
+			throw new NullPointerException("压缩配置缺失");
+		}
+		if (this.sortRunSize == null || this.sortRunSize < MIN_SORT_RUN_SIZE) {
+			throw new Exception("排序缓存条目数配置错误");
+		}
+		if (this.merkle == null) {
+			throw new NullPointerException("目录哈希树配置缺失");
+		}
+		if (this.maxSessions == null || this.maxSessions < 1) {
+			throw new Exception("最大会话数配置错误");
+		}
+		if (this.selectorWorkers == null || this.selectorWorkers < 0) {
+			throw new Exception("选择器工作线程数配置错误");
+		}
+		if (this.aesGcm == null) {
+			throw new NullPointerException("认证加密配置缺失");
+		}
+		if (this.cryptoThreads == null || this.cryptoThreads < 0) {
+			throw new Exception("加密线程数配置错误");
+		}
+		if (this.batchSize == null || this.batchSize < 0 || this.batchSize > MAX_BATCH_SIZE) {
+			throw new Exception("打包大小配置错误");
+		}
+		if (this.watchDebounce == null || this.watchDebounce < 0) {
+			throw new Exception("防抖间隔配置错误");
+		}
+		if (this.reconcileInterval == null || this.reconcileInterval < 0) {
+			throw new Exception("全量核对间隔配置错误");
+		}
+		if (this.fastHash == null) {
+			throw new NullPointerException("快速哈希配置缺失");
+		}
+		if (this.checksum == null) {
+			throw new NullPointerException("内容比较配置缺失");
+		}
+		if (this.sessionBandwidth == null || this.sessionBandwidth < 0) {
+			throw new Exception("会话带宽上限配置错误");
+		}
+		if (this.serverBandwidth == null || this.serverBandwidth < 0) {
+			throw new Exception("服务端带宽上限配置错误");
+		}
+		if (this.smallFileSize == null || this.smallFileSize < 0) {
+			throw new Exception("小文件上限配置错误");
+		}
+		if (this.priorityList == null) {
+			throw new NullPointerException("优先传输列表配置缺失");
+		}
 		if (this.serverPort < MIN_PORT || this.serverPort > MAX_PORT) {
 			throw new Exception("端口访问错误");
 		}
@@ -201,6 +374,25 @@ public class FileSyncConfig implements Serializable {
 		this.serverPort = null;
 		this.syncDir = null;
 		this.ignoreList = null;
+		this.parseThreads = 0;
+		this.downloadWindow = 16;
+		this.dataConnections = 0;
+		this.compress = true;
+		this.sortRunSize = 100000;
+		this.merkle = false;
+		this.maxSessions = 16;
+		this.selectorWorkers = 0;
+		this.aesGcm = true;
+		this.cryptoThreads = 0;
+		this.batchSize = 1024 * 1024;
+		this.watchDebounce = 1000;
+		this.reconcileInterval = 3600;
+		this.fastHash = false;
+		this.checksum = false;
+		this.sessionBandwidth = 0;
+		this.serverBandwidth = 0;
+		this.smallFileSize = 1024;
+		this.priorityList = new ArrayList<>();
 	}
 
 	public String getId() {
@@ -257,6 +449,87 @@ public class FileSyncConfig implements Serializable {
 		return this;
 	}
 
+	public Integer getParseThreads() {
+		return parseThreads;
+	}
+
+	public FileSyncConfig setParseThreads(Integer parseThreads) {
+		this.parseThreads = parseThreads;
+		return this;
+	}
+
+	public Integer getDownloadWindow() {
+		return downloadWindow;
+	}
+
+	public FileSyncConfig setDownloadWindow(Integer downloadWindow) {
+		this.downloadWindow = downloadWindow;
+		return this;
+	}
+
+	public Integer getDataConnections() {
+		return dataConnections;
+	}
+
+	public FileSyncConfig setDataConnections(Integer dataConnections) {
+		this.dataConnections = dataConnections;
+		return this;
+	}
+
+	public Boolean getCompress() {
+		return compress;
+	}
+
+	public FileSyncConfig setCompress(Boolean compress) {
+		this.compress = compress;
+		return this;
+	}
+
+	public Integer getSortRunSize() {
+		return sortRunSize;
+	}
+
+	public FileSyncConfig setSortRunSize(Integer sortRunSize) {
+		this.sortRunSize = sortRunSize;
+		return this;
+	}
+
+	public Boolean getMerkle() {
+		return merkle;
+	}
+
+	public FileSyncConfig setMerkle(Boolean merkle) {
+		this.merkle = merkle;
+		return this;
+	}
+
+	public Integer getMaxSessions() {
+		return maxSessions;
+	}
+
+	public FileSyncConfig setMaxSessions(Integer maxSessions) {
+		this.maxSessions = maxSessions;
+		return this;
+	}
+
+	public Integer getSelectorWorkers() {
+		return selectorWorkers;
+	}
+
+	public FileSyncConfig setSelectorWorkers(Integer selectorWorkers) {
+		this.selectorWorkers = selectorWorkers;
+		return this;
+	}
+
+	public Boolean getAesGcm() {
+		return aesGcm;
+	}
+
+	public FileSyncConfig setAesGcm(Boolean aesGcm) {
+		this.aesGcm = aesGcm;
+		return this;
+	}
+
 
 	@Override
 	public boolean equals(Object o) {
@@ -275,6 +548,96 @@ public class FileSyncConfig implements Serializable {
 		return Objects.hash(id);
 	}
 
+	public Integer getCryptoThreads() {
+		return cryptoThreads;
+	}
+
+	public FileSyncConfig setCryptoThreads(Integer cryptoThreads) {
+		this.cryptoThreads = cryptoThreads;
+		return this;
+	}
+
+	public Integer getBatchSize() {
+		return batchSize;
+	}
+
+	public FileSyncConfig setBatchSize(Integer batchSize) {
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	public Integer getWatchDebounce() {
+		return watchDebounce;
+	}
+
+	public FileSyncConfig setWatchDebounce(Integer watchDebounce) {
+		this.watchDebounce = watchDebounce;
+		return this;
+	}
+
+	public Integer getReconcileInterval() {
+		return reconcileInterval;
+	}
+
+	public FileSyncConfig setReconcileInterval(Integer reconcileInterval) {
+		this.reconcileInterval = reconcileInterval;
+		return this;
+	}
+
+	public Boolean getFastHash() {
+		return fastHash;
+	}
+
+	public FileSyncConfig setFastHash(Boolean fastHash) {
+		this.fastHash = fastHash;
+		return this;
+	}
+
+	public Boolean getChecksum() {
+		return checksum;
+	}
+
+	public FileSyncConfig setChecksum(Boolean checksum) {
+		this.checksum = checksum;
+		return this;
+	}
+
+	public Integer getSessionBandwidth() {
+		return sessionBandwidth;
+	}
+
+	public FileSyncConfig setSessionBandwidth(Integer sessionBandwidth) {
+		this.sessionBandwidth = sessionBandwidth;
+		return this;
+	}
+
+	public Integer getServerBandwidth() {
+		return serverBandwidth;
+	}
+
+	public FileSyncConfig setServerBandwidth(Integer serverBandwidth) {
+		this.serverBandwidth = serverBandwidth;
+		return this;
+	}
+
+	public Integer getSmallFileSize() {
+		return smallFileSize;
+	}
+
+	public FileSyncConfig setSmallFileSize(Integer smallFileSize) {
+		this.smallFileSize = smallFileSize;
+		return this;
+	}
+
+	public List<String> getPriorityList() {
+		return priorityList;
+	}
+
+	public FileSyncConfig setPriorityList(List<String> priorityList) {
+		this.priorityList = priorityList;
+		return this;
+	}
+
 	@Override
 	public String toString() {
 		return "FileSyncConfig{" +
@@ -284,6 +647,25 @@ public class FileSyncConfig implements Serializable {
 				", syncDir='" + syncDir + '\'' +
 				", ignoreList=" + ignoreList +
 				", secretKey='" + secretKey + '\'' +
+				", parseThreads=" + parseThreads +
+				", downloadWindow=" + downloadWindow +
+				", dataConnections=" + dataConnections +
+				", compress=" + compress +
+				", sortRunSize=" + sortRunSize +
+				", merkle=" + merkle +
+				", maxSessions=" + maxSessions +
+				", selectorWorkers=" + selectorWorkers +
+				", aesGcm=" + aesGcm +
+				", cryptoThreads=" + cryptoThreads +
+				", batchSize=" + batchSize +
+				", watchDebounce=" + watchDebounce +
+				", reconcileInterval=" + reconcileInterval +
+				", fastHash=" + fastHash +
+				", checksum=" + checksum +
+				", sessionBandwidth=" + sessionBandwidth +
+				", serverBandwidth=" + serverBandwidth +
+				", smallFileSize=" + smallFileSize +
+				", priorityList=" + priorityList +
 				'}';
 	}
 }
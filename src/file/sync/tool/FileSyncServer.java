@@ -16,25 +16,50 @@
 
 package file.sync.tool;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.List;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 文件同步服务端
+ * <p>
+ * 服务端常驻运行，循环接受连接，每个连接完成身份验证后，
+ * 作为新会话的控制连接或已有会话的数据连接处理。
+ * 默认每个连接使用一个线程，运行环境支持虚拟线程时使用虚拟线程，否则使用有上限的线程池；
+ * 配置了选择器工作线程数时改用选择器引擎，由一个事件循环监听所有连接，空闲连接不占用线程
  *
  * @author shouchen
  */
 public class FileSyncServer {
 	private static volatile FileSyncServer fileSyncServer;
-	private FileSyncConfig config;
-	private NetTransfer netTransfer;
-	private Socket socket;
+	/**
+	 * 每个会话最多的数据连接数
+	 */
+	public static final int MAX_DATA_CONNECTIONS = 32;
+	private static final long SHUTDOWN_TIMEOUT = 30000;
+	private static final long SHUTDOWN_POLL_INTERVAL = 100;
+	private static final int FORCE_SHUTDOWN_TIMEOUT = 5;
+	private final FileSyncConfig config;
+	private final Semaphore sessionPermits;
+	private final Semaphore connectionPermits;
+	private final Set<Socket> sockets;
+	private final ConcurrentHashMap<String, FileSyncSession> joinTokens;
+	private final AtomicInteger sessionIds;
+	private final Object scanLock;
+	private final int maxConnections;
+	private final RateLimiter bandwidth;
+	private final Set<RateLimiter> sessionLimiters;
+	private volatile long sessionRate;
+	private volatile boolean running;
+	private ExecutorService executor;
+	private ServerSocket serverSocket;
+	private SelectorEngine selectorEngine;
 
 	public static void startServer(FileSyncConfig config) {
 		if (fileSyncServer == null) {
@@ -51,101 +76,258 @@ public class FileSyncServer {
 
 	private FileSyncServer(FileSyncConfig config) {
 		this.config = config;
+		this.maxConnections = config.getMaxSessions() * (MAX_DATA_CONNECTIONS + 1);
+		this.sessionPermits = new Semaphore(config.getMaxSessions());
+		this.connectionPermits = new Semaphore(maxConnections);
+		this.sockets = ConcurrentHashMap.newKeySet();
+		this.joinTokens = new ConcurrentHashMap<>(16);
+		this.sessionIds = new AtomicInteger();
+		this.scanLock = new Object();
+		this.bandwidth = new RateLimiter(config.getServerBandwidth() * 1024L, null);
+		this.sessionLimiters = ConcurrentHashMap.newKeySet();
+		this.sessionRate = config.getSessionBandwidth() * 1024L;
 	}
 
-	private void stop() {
+	/**
+	 * 配置文件修改后调整发送带宽上限，对进行中的会话立即生效
+	 *
+	 * @param newConfig 重新读取的配置
+	 */
+	private void applyBandwidth(FileSyncConfig newConfig) {
+		long serverRate = newConfig.getServerBandwidth() * 1024L;
+		long newSessionRate = newConfig.getSessionBandwidth() * 1024L;
+		if (serverRate == bandwidth.getRate() && newSessionRate == sessionRate) {
+			return;
+		}
+		bandwidth.setRate(serverRate);
+		sessionRate = newSessionRate;
+		for (RateLimiter limiter : sessionLimiters) {
+			limiter.setRate(newSessionRate);
+		}
+		Logger.info("带宽上限已调整为 服务端 " + newConfig.getServerBandwidth() + "KB/s 每个会话 " + newConfig.getSessionBandwidth() + "KB/s");
+	}
+
+	/**
+	 * 优先使用虚拟线程，运行环境不支持时使用有上限的线程池
+	 */
+	private static ExecutorService newExecutor(int maxThreads) {
 		try {
-			socket.close();
-		} catch (IOException e) {
-			Logger.warn(e);
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			ExecutorService executor = (ExecutorService) method.invoke(null);
+			Logger.info("使用虚拟线程处理连接");
+			return executor;
+		} catch (ReflectiveOperationException e) {
+			AtomicInteger threadIds = new AtomicInteger();
+			return new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+					runnable -> new Thread(runnable, "connection-" + threadIds.incrementAndGet()));
 		}
-		System.exit(0);
 	}
 
 	private void startServer() {
-		try (ServerSocket serverSocket = new ServerSocket(config.getServerPort())) {
-			Logger.out("等待客户端连接...");
-			this.socket = serverSocket.accept();
-			this.netTransfer = new NetTransfer(socket.getInputStream(), socket.getOutputStream(), this.config.getSecretKey());
+		FrameCipher.setParallelism(config.getCryptoThreads());
+		try {
+			if (config.getSelectorWorkers() > 0) {
+				ServerSocketChannel serverChannel = ServerSocketChannel.open();
+				serverChannel.bind(new InetSocketAddress(config.getServerPort()));
+				this.selectorEngine = new SelectorEngine(this, serverChannel, config.getSelectorWorkers());
+			} else {
+				this.serverSocket = new ServerSocket(config.getServerPort());
+				this.executor = newExecutor(maxConnections);
+			}
 		} catch (IOException e) {
 			Logger.error(e);
-			stop();
+			return;
 		}
-		Logger.info("连接成功");
-		Logger.info("验证客户端身份中...");
-		try {
-			String serverHostName = netTransfer.checkIdentity();
-			Logger.info("身份验证成功，识别为 " + serverHostName);
-			netTransfer.sendInt(StatusCode.DONE);
-			netTransfer.sendIdentity();
-			if (netTransfer.getInt() != StatusCode.DONE) {
-				Logger.warn("错误的客户端输入");
-				stop();
+		this.running = true;
+		Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "shutdown"));
+		ConfigReloader.start(config.getId(), this::applyBandwidth);
+		Logger.out("等待客户端连接...");
+		if (selectorEngine != null) {
+			Logger.info("使用选择器引擎，工作线程数 " + config.getSelectorWorkers());
+			try {
+				selectorEngine.run();
+			} catch (IOException e) {
+				Logger.error(e);
 			}
-		} catch (IOException | BadPaddingException | IllegalBlockSizeException e) {
-			Logger.error("身份验证失败！");
+		} else {
+			acceptLoop();
+		}
+		Logger.info("服务端已停止");
+	}
+
+	/**
+	 * 线程引擎：每个连接在独立的线程中连续处理到结束
+	 */
+	private void acceptLoop() {
+		while (running) {
+			Socket socket;
 			try {
-				netTransfer.sendInt(StatusCode.ERROR);
-			} catch (IOException ioException) {
-				ioException.printStackTrace();
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				if (running) {
+					Logger.warn(e);
+				}
+				continue;
+			}
+			ServerConnection connection = openConnection(socket);
+			if (connection == null) {
+				continue;
 			}
-			stop();
+			try {
+				executor.execute(() -> {
+					try {
+						boolean open;
+						do {
+							open = connection.step();
+						} while (open);
+					} finally {
+						closeConnection(connection);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				closeConnection(connection);
+			}
+		}
+	}
+
+	/**
+	 * 停止接受新连接，等待进行中的会话结束，超时后强制关闭所有连接
+	 */
+	private void shutdown() {
+		if (!running) {
+			return;
 		}
+		running = false;
+		Logger.info("正在停止服务端，等待进行中的会话结束...");
 		try {
-			netTransfer.sendObject(config.getIgnoreList());
-			List<String> ignoreList = (List<String>) netTransfer.getObject();
-			ignoreList.addAll(config.getIgnoreList());
-			HashMap<String, String> serverFileMap = FileParse.fileParse(config.getSyncDir(), ignoreList);
-			netTransfer.sendObject(serverFileMap);
-		} catch (IOException | BadPaddingException | IllegalBlockSizeException | ClassNotFoundException e) {
-			e.printStackTrace();
+			if (selectorEngine != null) {
+				selectorEngine.stopAccepting();
+			} else {
+				serverSocket.close();
+			}
+		} catch (IOException e) {
+			Logger.warn(e);
 		}
-		Logger.out("等待客户端...");
-		int status;
-		String fileName;
+		long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
 		try {
-			while ((status = netTransfer.getInt()) != StatusCode.DONE) {
-				switch (status) {
-					case StatusCode.DELETE:
-						fileName = netTransfer.getString();
-						File file = new File(this.config.getSyncDir(), fileName);
-						if (file.exists()) {
-							if (file.isDirectory()) {
-								Logger.info("删除目录 " + fileName);
-							} else {
-								Logger.info("删除文件 " + fileName);
-							}
-							FileParse.deleteFile(file);
-						}
-						break;
-					case StatusCode.PUT:
-						fileName = netTransfer.getString();
-						Logger.info("接收文件 " + fileName);
-						netTransfer.getFile(new File(this.config.getSyncDir(), fileName));
-						break;
-					case StatusCode.GET:
-						fileName = netTransfer.getString();
-						Logger.info("发送文件 " + fileName);
-						netTransfer.sendFile(new File(this.config.getSyncDir(), fileName));
-						break;
-					case StatusCode.DIR:
-						fileName = netTransfer.getString();
-						Logger.info("创建目录 " + fileName);
-						new File(this.config.getSyncDir(), fileName).mkdirs();
-						break;
-					case StatusCode.CANCEL:
-						Logger.warn("客户端取消传输");
-						stop();
-						break;
-					default:
-						Logger.warn("错误的状态码 " + status);
-						stop();
+			while (!sockets.isEmpty() && System.currentTimeMillis() < deadline) {
+				Thread.sleep(SHUTDOWN_POLL_INTERVAL);
+			}
+			if (!sockets.isEmpty()) {
+				Logger.warn("会话未能按时结束，强制关闭连接");
+				for (Socket socket : sockets) {
+					closeSocket(socket);
 				}
 			}
-		} catch (IOException | BadPaddingException | IllegalBlockSizeException e) {
-			e.printStackTrace();
+			if (executor != null) {
+				executor.shutdown();
+				executor.awaitTermination(FORCE_SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	boolean isRunning() {
+		return running;
+	}
+
+	boolean hasConnections() {
+		return !sockets.isEmpty();
+	}
+
+	/**
+	 * 登记新接受的连接，连接数已满时关闭连接
+	 *
+	 * @param socket 连接
+	 * @return 连接对象，被拒绝时返回null
+	 */
+	ServerConnection openConnection(Socket socket) {
+		if (!connectionPermits.tryAcquire()) {
+			Logger.warn("连接数已满，拒绝连接 " + socket.getRemoteSocketAddress());
+			closeSocket(socket);
+			return null;
+		}
+		sockets.add(socket);
+		return new ServerConnection(this, this.config, socket);
+	}
+
+	void closeConnection(ServerConnection connection) {
+		connection.close();
+		if (sockets.remove(connection.getSocket())) {
+			connectionPermits.release();
+		}
+	}
+
+	boolean tryAcquireSession() {
+		return sessionPermits.tryAcquire();
+	}
+
+	void releaseSession() {
+		sessionPermits.release();
+	}
+
+	int nextSessionId() {
+		return sessionIds.incrementAndGet();
+	}
+
+	/**
+	 * 登记会话令牌，数据连接凭令牌加入会话
+	 *
+	 * @param token   令牌
+	 * @param session 会话
+	 */
+	void registerToken(String token, FileSyncSession session) {
+		joinTokens.put(token, session);
+	}
+
+	void unregisterToken(String token) {
+		joinTokens.remove(token);
+	}
+
+	/**
+	 * 查找令牌对应的会话并占用一个数据连接名额
+	 *
+	 * @param token 令牌
+	 * @return 会话，令牌无效或名额已用完时返回null
+	 */
+	FileSyncSession findSession(String token) {
+		FileSyncSession session = joinTokens.get(token);
+		if (session == null || !session.reserveDataConnection(token)) {
+			return null;
+		}
+		return session;
+	}
+
+	/**
+	 * 为新会话创建限速器，挂在服务端的限速器之下
+	 *
+	 * @return 会话的限速器
+	 */
+	RateLimiter openSessionLimiter() {
+		RateLimiter limiter = new RateLimiter(sessionRate, bandwidth);
+		sessionLimiters.add(limiter);
+		return limiter;
+	}
+
+	void closeSessionLimiter(RateLimiter limiter) {
+		sessionLimiters.remove(limiter);
+	}
+
+	/**
+	 * 扫描同步目录时持有的锁，避免多个会话同时改写索引文件
+	 *
+	 * @return 锁对象
+	 */
+	Object getScanLock() {
+		return scanLock;
+	}
+
+	private static void closeSocket(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			Logger.warn(e);
 		}
-		Logger.info("完毕");
-		stop();
 	}
 }
@@ -0,0 +1,279 @@
+/*
+ * Copyright © 2021 TongZhen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package file.sync.tool;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 服务端会话，保存一个客户端从分析到传输完成期间的全部状态
+ *
+ * @author shouchen
+ */
+class FileSyncSession {
+	private static final SecureRandom RANDOM = new SecureRandom();
+	private final FileSyncServer server;
+	private final FileSyncConfig config;
+	private final NetTransfer netTransfer;
+	private final Map<String, Integer> pendingTokens;
+	private final RateLimiter rateLimiter;
+
+	FileSyncSession(FileSyncServer server, FileSyncConfig config, NetTransfer netTransfer) {
+		this.server = server;
+		this.config = config;
+		this.netTransfer = netTransfer;
+		this.pendingTokens = new HashMap<>(4);
+		this.rateLimiter = server.openSessionLimiter();
+		netTransfer.setRateLimiter(rateLimiter);
+	}
+
+	/**
+	 * @return 会话所有连接共用的限速器
+	 */
+	RateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	/**
+	 * 交换忽略列表和文件列表，之后控制连接进入命令处理阶段
+	 */
+	void setup() throws IOException, BadPaddingException, IllegalBlockSizeException, ClassNotFoundException {
+		netTransfer.sendObject(config.getIgnoreList());
+		List<String> ignoreList = (List<String>) netTransfer.getObject();
+		ignoreList.addAll(config.getIgnoreList());
+		FileParse fileParse = new FileParse(config.getSyncDir(), ignoreList, config.getParseThreads(), config.getSortRunSize(),
+				netTransfer.hashAlgorithm(), netTransfer.hasFeature(NetTransfer.FEATURE_QUICK_CHECK));
+		if (netTransfer.hasFeature(NetTransfer.FEATURE_MERKLE)) {
+			MerkleTree tree;
+			synchronized (server.getScanLock()) {
+				tree = fileParse.parseTree();
+			}
+			tree.serve(netTransfer);
+			if (netTransfer.hashExchange()) {
+				serveHashes(fileParse);
+			}
+		} else {
+			EntrySource entries;
+			synchronized (server.getScanLock()) {
+				entries = netTransfer.deferHash() ? fileParse.parseMetadata() : fileParse.parse();
+			}
+			try (EntrySource serverEntries = entries;
+				 ManifestWriter writer = new ManifestWriter(netTransfer.frameOutput(), ManifestWriter.HASH_LEN,
+						 netTransfer.hasFeature(NetTransfer.FEATURE_METADATA))) {
+				FileEntry entry;
+				while ((entry = serverEntries.read()) != null) {
+					writer.write(entry);
+				}
+			}
+			if (netTransfer.hashExchange()) {
+				serveHashes(fileParse);
+			}
+		}
+		Logger.out("等待客户端...");
+	}
+
+	/**
+	 * 应答客户端分批请求的文件哈希，直到收到空请求
+	 */
+	private void serveHashes(FileParse fileParse) throws IOException, BadPaddingException, IllegalBlockSizeException {
+		List<String> paths;
+		while (!(paths = netTransfer.getStrings()).isEmpty()) {
+			List<byte[]> hashes;
+			synchronized (server.getScanLock()) {
+				hashes = fileParse.hash(paths);
+			}
+			try (OutputStream output = netTransfer.frameOutput()) {
+				for (byte[] hash : hashes) {
+					output.write(hash.length == ManifestWriter.HASH_LEN ? hash : new byte[ManifestWriter.HASH_LEN]);
+				}
+			}
+			netTransfer.flush();
+		}
+		synchronized (server.getScanLock()) {
+			fileParse.finish();
+		}
+	}
+
+	/**
+	 * 结束会话，尚未加入的数据连接不再被接受
+	 */
+	synchronized void finish() {
+		for (String token : pendingTokens.keySet()) {
+			server.unregisterToken(token);
+		}
+		pendingTokens.clear();
+		server.closeSessionLimiter(rateLimiter);
+	}
+
+	/**
+	 * 为凭令牌加入的数据连接占用一个名额
+	 *
+	 * @param token 令牌
+	 * @return 名额已用完时返回false
+	 */
+	synchronized boolean reserveDataConnection(String token) {
+		Integer pending = pendingTokens.get(token);
+		if (pending == null) {
+			return false;
+		}
+		if (pending == 1) {
+			pendingTokens.remove(token);
+			server.unregisterToken(token);
+		} else {
+			pendingTokens.put(token, pending - 1);
+		}
+		return true;
+	}
+
+	/**
+	 * 处理控制连接或数据连接上的一条命令
+	 *
+	 * @param transfer 控制连接或数据连接
+	 * @return 收到完成标记或取消时返回false
+	 */
+	boolean serveCommand(NetTransfer transfer) throws IOException, BadPaddingException, IllegalBlockSizeException {
+		int status = transfer.getInt();
+		String fileName;
+		switch (status) {
+			case StatusCode.DONE:
+				return false;
+			case StatusCode.DELETE:
+				fileName = transfer.getString();
+				File file = new File(this.config.getSyncDir(), fileName);
+				if (file.exists()) {
+					if (file.isDirectory()) {
+						Logger.info("删除目录 " + fileName);
+					} else {
+						Logger.info("删除文件 " + fileName);
+					}
+					FileParse.deleteFile(file);
+				}
+				break;
+			case StatusCode.PUT:
+				fileName = transfer.getString();
+				Logger.info("接收文件 " + fileName);
+				transfer.getFile(new File(this.config.getSyncDir(), fileName));
+				break;
+			case StatusCode.GET:
+				fileName = transfer.getString();
+				Logger.info("发送文件 " + fileName);
+				transfer.sendFile(new File(this.config.getSyncDir(), fileName));
+				break;
+			case StatusCode.PUT_FROM:
+				fileName = transfer.getString();
+				PartialFile partialFile = new PartialFile(new File(this.config.getSyncDir(), fileName));
+				if (partialFile.load()) {
+					transfer.sendLong(partialFile.getCheckpointOffset());
+					transfer.sendString(partialFile.getCheckpointHash());
+				} else {
+					transfer.sendLong(0);
+					transfer.sendString("");
+				}
+				long putOffset = transfer.getLong();
+				Logger.info(putOffset > 0 ? "继续接收文件 " + fileName + " 从 " + putOffset : "接收文件 " + fileName);
+				transfer.getFile(partialFile, putOffset);
+				break;
+			case StatusCode.GET_FROM:
+				fileName = transfer.getString();
+				long getOffset = transfer.getLong();
+				String hash = transfer.getString();
+				File sendFile = new File(this.config.getSyncDir(), fileName);
+				if (!hash.equals(PartialFile.prefixHash(sendFile, getOffset))) {
+					getOffset = 0;
+				}
+				Logger.info(getOffset > 0 ? "继续发送文件 " + fileName + " 从 " + getOffset : "发送文件 " + fileName);
+				transfer.sendLong(getOffset);
+				transfer.sendFile(sendFile, getOffset);
+				break;
+			case StatusCode.DELTA_PUT:
+				fileName = transfer.getString();
+				Logger.info("差量接收文件 " + fileName);
+				File basisFile = new File(this.config.getSyncDir(), fileName);
+				DeltaSync.sendSignature(basisFile, transfer);
+				transfer.sendInt(DeltaSync.getDelta(basisFile, transfer) ? StatusCode.DONE : StatusCode.ERROR);
+				break;
+			case StatusCode.DELTA_GET:
+				fileName = transfer.getString();
+				Logger.info("差量发送文件 " + fileName);
+				DeltaSync.sendDelta(new File(this.config.getSyncDir(), fileName), transfer);
+				break;
+			case StatusCode.BATCH_PUT:
+				Logger.info("接收打包文件");
+				transfer.getBatch(new File(this.config.getSyncDir()), new ArrayList<>());
+				break;
+			case StatusCode.BATCH_GET:
+				List<String> paths = transfer.getStrings();
+				Logger.info("发送打包文件 " + paths.size() + " 个");
+				transfer.sendBatch(new File(this.config.getSyncDir()), paths, this.config.getBatchSize());
+				break;
+			case StatusCode.DIR:
+				fileName = transfer.getString();
+				Logger.info("创建目录 " + fileName);
+				new File(this.config.getSyncDir(), fileName).mkdirs();
+				break;
+			case StatusCode.MTIME:
+				fileName = transfer.getString();
+				long mtime = transfer.getLong();
+				File target = new File(this.config.getSyncDir(), fileName);
+				if (target.isFile()) {
+					Logger.info("更新修改时间 " + fileName);
+					target.setLastModified(mtime);
+				}
+				break;
+			case StatusCode.CONNECT:
+				expectDataConnections(transfer, transfer.getInt());
+				break;
+			case StatusCode.CANCEL:
+				Logger.warn("客户端取消传输");
+				return false;
+			default:
+				throw new IOException("错误的状态码 " + status);
+		}
+		return true;
+	}
+
+	/**
+	 * 下发会话令牌，客户端建立的数据连接通过身份验证后出示令牌加入本会话
+	 *
+	 * @param transfer 控制连接
+	 * @param count    数据连接数
+	 */
+	private void expectDataConnections(NetTransfer transfer, int count) throws IOException, BadPaddingException, IllegalBlockSizeException {
+		if (count < 1 || count > FileSyncServer.MAX_DATA_CONNECTIONS) {
+			throw new IOException("错误的数据连接数 " + count);
+		}
+		byte[] tokenBytes = new byte[16];
+		RANDOM.nextBytes(tokenBytes);
+		String token = Base64.getEncoder().encodeToString(tokenBytes);
+		synchronized (this) {
+			pendingTokens.put(token, count);
+		}
+		server.registerToken(token, this);
+		transfer.sendString(token);
+		transfer.flush();
+		Logger.info("等待 " + count + " 个数据连接");
+	}
+}
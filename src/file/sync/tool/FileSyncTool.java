@@ -25,19 +25,40 @@ public class FileSyncTool {
 	private static final int MIN_ARGS_QUANTITY = 2;
 	private static final String SERVER_MODE = "server";
 	private static final String CLIENT_MODE = "client";
+	private static final String WATCH_MODE = "watch";
 
 	public static String helpString() {
 		return "[使用帮助]\n" +
 				"  -启动参数-\n" +
 				"    用作服务端：server <配置编号>\n" +
 				"    用作客户端：client <配置编号>\n" +
+				"    持续推送本地变化：watch <配置编号>\n" +
 				"  -服务端配置(FileSyncConfig.json)-\n" +
 				"    配置编号：id\n" +
 				"    服务地址：serverHost\n" +
 				"    访问端口：serverPort\n" +
 				"    同步目录：syncDir\n" +
 				"    忽略文件列表：ignoreList\n" +
-				"    安全密钥：secretKey\n";
+				"    安全密钥：secretKey\n" +
+				"    解析线程数：parseThreads\n" +
+				"    下载窗口：downloadWindow\n" +
+				"    数据连接数：dataConnections\n" +
+				"    传输压缩：compress\n" +
+				"    排序缓存条目数：sortRunSize\n" +
+				"    目录哈希树比较：merkle\n" +
+				"    最大会话数：maxSessions\n" +
+				"    选择器工作线程数：selectorWorkers\n" +
+				"    认证加密：aesGcm\n" +
+				"    加密线程数：cryptoThreads\n" +
+				"    打包大小：batchSize\n" +
+				"    防抖间隔：watchDebounce\n" +
+				"    全量核对间隔：reconcileInterval\n" +
+				"    快速哈希：fastHash\n" +
+				"    内容比较：checksum\n" +
+				"    会话带宽上限：sessionBandwidth\n" +
+				"    服务端带宽上限：serverBandwidth\n" +
+				"    小文件上限：smallFileSize\n" +
+				"    优先传输列表：priorityList\n";
 	}
 
 	public static void main(String[] args) {
@@ -47,7 +68,7 @@ public class FileSyncTool {
 			System.out.println(helpString());
 			System.exit(-1);
 		}
-		if (!args[0].equals(SERVER_MODE) && !args[0].equals(CLIENT_MODE)) {
+		if (!args[0].equals(SERVER_MODE) && !args[0].equals(CLIENT_MODE) && !args[0].equals(WATCH_MODE)) {
 			System.out.println(helpString());
 			System.exit(-2);
 		}
@@ -71,6 +92,8 @@ public class FileSyncTool {
 			FileSyncServer.startServer(config);
 		} else if (args[0].equals(CLIENT_MODE)) {
 			FileSyncClient.startClient(config);
+		} else if (args[0].equals(WATCH_MODE)) {
+			FileSyncClient.startWatch(config);
 		}
 	}
 }
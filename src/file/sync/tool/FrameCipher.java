@@ -0,0 +1,260 @@
+/*
+ * Copyright © 2021 TongZhen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package file.sync.tool;
+
+import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.InterruptedIOException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 帧加解密
+ * <p>
+ * 未协商认证加密时使用共享密钥和原有的AES模式；
+ * 协商后使用会话密钥和AES-GCM，帧体按 {@link #SEGMENT_SIZE} 分段，每段单独加密并带有认证标签。
+ * 每个方向各自维护分段计数器，方向和计数器组成12字节的IV，
+ * 帧标志位和是否为帧的最后一段作为附加认证数据，数据被篡改、截断、重放或乱序时解密失败。
+ * 分段加密让每次调用处理的数据量较小，JIT能够尽早编译加密的热点代码。
+ * 各段的IV由帧起始计数器和段序号决定，互不依赖，大帧的分段被划分给共享的加密线程池并行处理，
+ * 每段的输出位置是固定的，结果无需重新排序，线程池大小由 {@link #setParallelism(int)} 设置
+ *
+ * @author shouchen
+ */
+class FrameCipher {
+	/**
+	 * 客户端发往服务端方向
+	 */
+	static final int CLIENT_TO_SERVER = 0;
+	/**
+	 * 服务端发往客户端方向
+	 */
+	static final int SERVER_TO_CLIENT = 1;
+	private static final String GCM_TRANSFORMATION = "AES/GCM/NoPadding";
+	private static final int TAG_LEN = 16;
+	private static final int SEGMENT_SIZE = 16 * 1024;
+	private static final int IV_LEN = 12;
+	/**
+	 * 每个并行任务至少处理的分段数，过小的帧在当前线程处理
+	 */
+	private static final int MIN_TASK_SEGMENTS = 4;
+	private static final ThreadLocal<Cipher> WORKER_CIPHER = ThreadLocal.withInitial(() -> {
+		try {
+			return Cipher.getInstance(GCM_TRANSFORMATION);
+		} catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+	private static volatile int parallelism = 1;
+	private static volatile ExecutorService workers;
+	private final Cipher cipher;
+	private final SecretKey key;
+	private final int mode;
+	private final boolean gcm;
+	private final int direction;
+	private long counter;
+
+	private FrameCipher(Cipher cipher, SecretKey key, int mode, boolean gcm, int direction) {
+		this.cipher = cipher;
+		this.key = key;
+		this.mode = mode;
+		this.gcm = gcm;
+		this.direction = direction;
+	}
+
+	/**
+	 * 设置并行加解密的线程数，所有连接共享同一个线程池
+	 *
+	 * @param threads 线程数，0表示使用处理器核心数，1表示不并行
+	 */
+	static synchronized void setParallelism(int threads) {
+		int n = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		if (n == parallelism) {
+			return;
+		}
+		if (workers != null) {
+			workers.shutdown();
+		}
+		// 调用线程自己也处理一部分分段
+		AtomicInteger threadCount = new AtomicInteger();
+		workers = n > 1 ? Executors.newFixedThreadPool(n - 1, r -> {
+			Thread thread = new Thread(r, "FileSyncCrypto-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}) : null;
+		parallelism = n;
+	}
+
+	/**
+	 * 使用共享密钥的原有加密方式
+	 *
+	 * @param key  共享密钥
+	 * @param mode {@link Cipher#ENCRYPT_MODE} 或 {@link Cipher#DECRYPT_MODE}
+	 * @return 帧加解密器
+	 */
+	static FrameCipher legacy(SecretKey key, int mode) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException {
+		Cipher cipher = Cipher.getInstance(SecretKeyUtils.ALGORITHM);
+		cipher.init(mode, key);
+		return new FrameCipher(cipher, key, mode, false, 0);
+	}
+
+	/**
+	 * 使用会话密钥的AES-GCM认证加密
+	 *
+	 * @param sessionKey 会话密钥
+	 * @param mode       {@link Cipher#ENCRYPT_MODE} 或 {@link Cipher#DECRYPT_MODE}
+	 * @param direction  数据方向
+	 * @return 帧加解密器
+	 */
+	static FrameCipher gcm(SecretKey sessionKey, int mode, int direction) throws NoSuchPaddingException, NoSuchAlgorithmException {
+		return new FrameCipher(Cipher.getInstance(GCM_TRANSFORMATION), sessionKey, mode, true, direction);
+	}
+
+	/**
+	 * @param len 输入长度
+	 * @return 输出长度的上限
+	 */
+	int getOutputSize(int len) {
+		if (!gcm) {
+			return cipher.getOutputSize(len);
+		}
+		if (mode == Cipher.ENCRYPT_MODE) {
+			return len + segments(len, SEGMENT_SIZE) * TAG_LEN;
+		}
+		return Math.max(len - segments(len, SEGMENT_SIZE + TAG_LEN) * TAG_LEN, 0);
+	}
+
+	private static int segments(int len, int segmentSize) {
+		return Math.max((len + segmentSize - 1) / segmentSize, 1);
+	}
+
+	/**
+	 * 加密或解密一帧
+	 *
+	 * @param flags 帧标志位
+	 * @return 输出长度
+	 */
+	int process(int flags, byte[] input, int inputOffset, int len, byte[] output, int outputOffset)
+			throws BadPaddingException, IllegalBlockSizeException, InterruptedIOException {
+		if (!gcm) {
+			try {
+				return cipher.doFinal(input, inputOffset, len, output, outputOffset);
+			} catch (ShortBufferException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		int segmentSize = mode == Cipher.ENCRYPT_MODE ? SEGMENT_SIZE : SEGMENT_SIZE + TAG_LEN;
+		int count = segments(len, segmentSize);
+		long base = counter;
+		counter += count;
+		ExecutorService pool = workers;
+		int tasks = Math.min(parallelism, count / MIN_TASK_SEGMENTS);
+		if (pool == null || tasks <= 1) {
+			return processSegments(cipher, flags, base, 0, count, count, input, inputOffset, len, output, outputOffset);
+		}
+		List<Future<Integer>> futures = new ArrayList<>(tasks - 1);
+		for (int t = 1; t < tasks; t++) {
+			int from = (int) ((long) count * t / tasks);
+			int to = (int) ((long) count * (t + 1) / tasks);
+			futures.add(pool.submit(() -> processSegments(WORKER_CIPHER.get(), flags, base, from, to, count,
+					input, inputOffset, len, output, outputOffset)));
+		}
+		Exception failure = null;
+		int outputLen = 0;
+		try {
+			outputLen = processSegments(cipher, flags, base, 0, count / tasks, count, input, inputOffset, len, output, outputOffset);
+		} catch (BadPaddingException | IllegalBlockSizeException e) {
+			failure = e;
+		}
+		// 等待全部任务结束后再返回，避免缓冲区被下一帧复用时仍有线程在写入
+		boolean interrupted = false;
+		for (Future<Integer> future : futures) {
+			while (true) {
+				try {
+					outputLen += future.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+					}
+					break;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (failure instanceof BadPaddingException) {
+			throw (BadPaddingException) failure;
+		}
+		if (failure instanceof IllegalBlockSizeException) {
+			throw (IllegalBlockSizeException) failure;
+		}
+		if (failure != null) {
+			throw new IllegalStateException(failure);
+		}
+		if (interrupted) {
+			throw new InterruptedIOException("加密被中断");
+		}
+		return outputLen;
+	}
+
+	/**
+	 * 处理一帧中 [from, to) 范围内的分段，第i段的输入和输出位置只由i决定
+	 *
+	 * @return 这些分段的输出长度
+	 */
+	private int processSegments(Cipher segmentCipher, int flags, long base, int from, int to, int count,
+								byte[] input, int inputOffset, int len, byte[] output, int outputOffset)
+			throws BadPaddingException, IllegalBlockSizeException {
+		int segmentSize = mode == Cipher.ENCRYPT_MODE ? SEGMENT_SIZE : SEGMENT_SIZE + TAG_LEN;
+		int outputSegmentSize = mode == Cipher.ENCRYPT_MODE ? SEGMENT_SIZE + TAG_LEN : SEGMENT_SIZE;
+		byte[] iv = new byte[IV_LEN];
+		iv[0] = (byte) direction;
+		byte[] aad = new byte[2];
+		aad[0] = (byte) flags;
+		int outputLen = 0;
+		try {
+			for (int i = from; i < to; i++) {
+				int segmentLen = Math.min(segmentSize, len - i * segmentSize);
+				if (mode == Cipher.DECRYPT_MODE && segmentLen < TAG_LEN) {
+					throw new IllegalBlockSizeException("错误的加密段长度 " + segmentLen);
+				}
+				long n = base + i;
+				for (int j = IV_LEN - 1; j >= IV_LEN - 8; j--) {
+					iv[j] = (byte) n;
+					n >>>= 8;
+				}
+				segmentCipher.init(mode, key, new GCMParameterSpec(TAG_LEN * 8, iv));
+				aad[1] = (byte) (i == count - 1 ? 1 : 0);
+				segmentCipher.updateAAD(aad);
+				outputLen += segmentCipher.doFinal(input, inputOffset + i * segmentSize, segmentLen,
+						output, outputOffset + i * outputSegmentSize);
+			}
+			return outputLen;
+		} catch (InvalidKeyException | InvalidAlgorithmParameterException | ShortBufferException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright © 2021 TongZhen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package file.sync.tool;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * 编译后的忽略规则
+ * <p>
+ * 规则与gitignore类似：不含通配符的规则是相对同步目录的完整路径；
+ * 含通配符但不含 / 的规则匹配任意层级的文件名，如 *.log；含 / 的规则从同步目录开始匹配整个路径。
+ * * 和 ? 不跨越目录，** 匹配任意层目录，以 / 结尾的规则只匹配目录。
+ * 完整路径放在哈希表中，*.后缀 形式的规则按后缀查表，其余规则合并成一个正则表达式，
+ * 被忽略的目录不再展开
+ *
+ * @author shouchen
+ */
+class IgnoreRules {
+	private final Set<String> paths;
+	private final Set<String> dirPaths;
+	private final Set<String> suffixes;
+	private final Set<String> dirSuffixes;
+	private final Pattern namePattern;
+	private final Pattern dirNamePattern;
+	private final Pattern pathPattern;
+	private final Pattern dirPathPattern;
+
+	/**
+	 * @param rules 忽略规则，\ 视为 /
+	 */
+	IgnoreRules(List<String> rules) {
+		this.paths = new HashSet<>();
+		this.dirPaths = new HashSet<>();
+		this.suffixes = new HashSet<>();
+		this.dirSuffixes = new HashSet<>();
+		List<String> names = new ArrayList<>();
+		List<String> dirNames = new ArrayList<>();
+		List<String> pathRules = new ArrayList<>();
+		List<String> dirPathRules = new ArrayList<>();
+		for (String rule : rules) {
+			String pattern = rule.replace('\\', '/');
+			boolean dirOnly = pattern.endsWith("/");
+			while (pattern.endsWith("/")) {
+				pattern = pattern.substring(0, pattern.length() - 1);
+			}
+			while (pattern.startsWith("/")) {
+				pattern = pattern.substring(1);
+			}
+			if (pattern.isEmpty()) {
+				continue;
+			}
+			if (!isGlob(pattern)) {
+				(dirOnly ? dirPaths : paths).add(pattern);
+			} else if (pattern.indexOf('/') >= 0) {
+				(dirOnly ? dirPathRules : pathRules).add(toRegex(pattern));
+			} else if (pattern.startsWith("*.") && !isGlob(pattern.substring(1))) {
+				(dirOnly ? dirSuffixes : suffixes).add(pattern.substring(1));
+			} else {
+				(dirOnly ? dirNames : names).add(toRegex(pattern));
+			}
+		}
+		this.namePattern = compile(names);
+		this.dirNamePattern = compile(dirNames);
+		this.pathPattern = compile(pathRules);
+		this.dirPathPattern = compile(dirPathRules);
+	}
+
+	/**
+	 * 路径本身是否被忽略，不检查上级目录，用于逐层遍历
+	 *
+	 * @param path 相对路径
+	 * @param dir  是否为目录
+	 * @return 是否忽略
+	 */
+	boolean isIgnored(String path, boolean dir) {
+		if (paths.contains(path) || dir && dirPaths.contains(path)) {
+			return true;
+		}
+		String name = path.substring(path.lastIndexOf('/') + 1);
+		for (int i = name.indexOf('.'); i >= 0; i = name.indexOf('.', i + 1)) {
+			String suffix = name.substring(i);
+			if (suffixes.contains(suffix) || dir && dirSuffixes.contains(suffix)) {
+				return true;
+			}
+		}
+		return matches(namePattern, name) || matches(pathPattern, path)
+				|| dir && (matches(dirNamePattern, name) || matches(dirPathPattern, path));
+	}
+
+	/**
+	 * 路径本身或任何一级上级目录是否被忽略
+	 *
+	 * @param path 相对路径
+	 * @param dir  是否为目录，无法确定时按目录处理
+	 * @return 是否忽略
+	 */
+	boolean isExcluded(String path, boolean dir) {
+		for (int i = path.indexOf('/'); i >= 0; i = path.indexOf('/', i + 1)) {
+			if (isIgnored(path.substring(0, i), true)) {
+				return true;
+			}
+		}
+		return isIgnored(path, dir);
+	}
+
+	private static boolean matches(Pattern pattern, String s) {
+		return pattern != null && pattern.matcher(s).matches();
+	}
+
+	private static Pattern compile(List<String> regexes) {
+		return regexes.isEmpty() ? null : Pattern.compile(String.join("|", regexes));
+	}
+
+	private static boolean isGlob(String pattern) {
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c == '*' || c == '?' || c == '[') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 把通配符规则转换为正则表达式
+	 */
+	private static String toRegex(String glob) {
+		StringBuilder regex = new StringBuilder("(?:");
+		int i = 0;
+		while (i < glob.length()) {
+			char c = glob.charAt(i);
+			if (c == '*' && glob.startsWith("**", i)) {
+				boolean segmentStart = i == 0 || glob.charAt(i - 1) == '/';
+				if (segmentStart && glob.startsWith("**/", i)) {
+					// **/ 匹配零层或多层目录
+					regex.append("(?:.*/)?");
+					i += 3;
+				} else if (segmentStart && i + 2 == glob.length()) {
+					regex.append(".*");
+					i += 2;
+				} else {
+					regex.append("[^/]*");
+					i += 2;
+				}
+			} else if (c == '*') {
+				regex.append("[^/]*");
+				i++;
+			} else if (c == '?') {
+				regex.append("[^/]");
+				i++;
+			} else if (c == '[' && glob.indexOf(']', i + 2) > 0) {
+				int end = glob.indexOf(']', i + 2);
+				String set = glob.substring(i + 1, end);
+				regex.append('[');
+				if (set.startsWith("!")) {
+					regex.append('^');
+					set = set.substring(1);
+				}
+				regex.append(set.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+				i = end + 1;
+			} else {
+				regex.append(Pattern.quote(String.valueOf(c)));
+				i++;
+			}
+		}
+		return regex.append(')').toString();
+	}
+}
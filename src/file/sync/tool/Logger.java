@@ -25,7 +25,7 @@ import java.util.Date;
  * @author shouchen
  */
 public class Logger {
-	public static void debug(Object log) {
+	public static synchronized void debug(Object log) {
 		System.out.print("\r\033[37m[" + date() + "\033[37m] [\033[;35;1mDEBUG\033[;37;22m] -> ");
 		if (log instanceof Exception) {
 			((Exception) log).printStackTrace(System.out);
@@ -34,7 +34,7 @@ public class Logger {
 		}
 	}
 
-	public static void info(Object log) {
+	public static synchronized void info(Object log) {
 		System.out.print("\r\033[37m[" + date() + "\033[37m] [\033[;34;1mINFO\033[;37;22m] -> ");
 		if (log instanceof Exception) {
 			((Exception) log).printStackTrace(System.out);
@@ -43,7 +43,7 @@ public class Logger {
 		}
 	}
 
-	public static void warn(Object log) {
+	public static synchronized void warn(Object log) {
 		System.out.print("\r\033[37m[" + date() + "\033[37m] [\033[;33;1mWARN\033[;37;22m] -> ");
 		if (log instanceof Exception) {
 			((Exception) log).printStackTrace(System.out);
@@ -52,7 +52,7 @@ public class Logger {
 		}
 	}
 
-	public static void error(Object log) {
+	public static synchronized void error(Object log) {
 		System.out.print("\r\033[37m[" + date() + "\033[37m] [\033[;31;1mERROR\033[;37;22m] -> ");
 		if (log instanceof Exception) {
 			((Exception) log).printStackTrace(System.out);
@@ -61,7 +61,7 @@ public class Logger {
 		}
 	}
 
-	public static void out(Object log) {
+	public static synchronized void out(Object log) {
 		System.out.print("\r\033[K\033[33m" + log + "\033[0m");
 	}
 
@@ -0,0 +1,118 @@
+/*
+ * Copyright © 2021 TongZhen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package file.sync.tool;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 二进制清单读取器，逐条解码 {@link ManifestWriter} 写入的清单
+ *
+ * @author shouchen
+ */
+public class ManifestReader implements EntrySource {
+	private final DataInputStream input;
+	private final int hashLen;
+	private final boolean metadata;
+	private byte[] pathBuf;
+	private boolean end;
+
+	/**
+	 * @param input 输入流，关闭读取器时一并关闭
+	 * @throws IOException 清单格式错误
+	 */
+	public ManifestReader(InputStream input) throws IOException {
+		this.input = new DataInputStream(new BufferedInputStream(input));
+		if (this.input.readInt() != ManifestWriter.MAGIC) {
+			throw new IOException("错误的清单格式");
+		}
+		int version = this.input.readUnsignedByte();
+		if (version != ManifestWriter.VERSION && version != ManifestWriter.VERSION_NO_METADATA) {
+			throw new IOException("不支持的清单版本 " + version);
+		}
+		this.metadata = version == ManifestWriter.VERSION;
+		this.hashLen = this.input.readUnsignedByte();
+		this.pathBuf = new byte[256];
+	}
+
+	@Override
+	public FileEntry read() throws IOException {
+		if (end) {
+			return null;
+		}
+		int type = input.readUnsignedByte();
+		if (type == ManifestWriter.TYPE_END) {
+			end = true;
+			return null;
+		}
+		if (type != ManifestWriter.TYPE_FILE && type != ManifestWriter.TYPE_DIR) {
+			throw new IOException("错误的清单条目类型 " + type);
+		}
+		int shared = readVarInt();
+		int len = shared + readVarInt();
+		if (pathBuf.length < len) {
+			pathBuf = Arrays.copyOf(pathBuf, Math.max(len, pathBuf.length * 2));
+		}
+		input.readFully(pathBuf, shared, len - shared);
+		String path = new String(pathBuf, 0, len, StandardCharsets.UTF_8);
+		if (type == ManifestWriter.TYPE_DIR) {
+			return new FileEntry(path, true, null);
+		}
+		byte[] hash = new byte[hashLen];
+		input.readFully(hash);
+		if (!metadata) {
+			return new FileEntry(path, false, hash);
+		}
+		long size = readVarLong() - 1;
+		long mtime = readVarLong();
+		return new FileEntry(path, false, hash, size, mtime);
+	}
+
+	public int getHashLen() {
+		return hashLen;
+	}
+
+	@Override
+	public void close() throws IOException {
+		input.close();
+	}
+
+	private int readVarInt() throws IOException {
+		int n = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = input.readUnsignedByte();
+			n |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return n;
+			}
+		}
+		throw new IOException("错误的varint");
+	}
+
+	private long readVarLong() throws IOException {
+		long n = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = input.readUnsignedByte();
+			n |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return n;
+			}
+		}
+		throw new IOException("错误的varint");
+	}
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright © 2021 TongZhen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package file.sync.tool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * 清单外部排序器
+ * <p>
+ * 条目先在内存中缓存，缓存满 runSize 条后排序写入临时文件，
+ * 全部加入后对各个临时文件做多路归并，内存占用与条目总数无关
+ *
+ * @author shouchen
+ */
+public class ManifestSorter {
+	static final Comparator<FileEntry> ORDER = Comparator.comparing(FileEntry::getPath);
+	private final int runSize;
+	private final int hashLen;
+	private final List<File> runs;
+	private List<FileEntry> buffer;
+	private long count;
+
+	/**
+	 * @param runSize 内存中最多缓存的条目数
+	 * @param hashLen 哈希长度
+	 */
+	public ManifestSorter(int runSize, int hashLen) {
+		this.runSize = runSize;
+		this.hashLen = hashLen;
+		this.runs = new ArrayList<>();
+		this.buffer = new ArrayList<>();
+	}
+
+	public synchronized void add(FileEntry entry) throws IOException {
+		buffer.add(entry);
+		count++;
+		if (buffer.size() >= runSize) {
+			spill();
+		}
+	}
+
+	public synchronized long size() {
+		return count;
+	}
+
+	/**
+	 * 结束添加并返回排序后的条目流
+	 *
+	 * @return 条目流，关闭时删除临时文件
+	 * @throws IOException IO异常
+	 */
+	public synchronized EntrySource sorted() throws IOException {
+		if (runs.isEmpty()) {
+			buffer.sort(ORDER);
+			List<FileEntry> entries = buffer;
+			buffer = new ArrayList<>();
+			return new ListSource(entries);
+		}
+		if (!buffer.isEmpty()) {
+			spill();
+		}
+		return new MergeSource(runs);
+	}
+
+	/**
+	 * 放弃排序，删除已写出的临时文件
+	 */
+	public synchronized void discard() {
+		for (File run : runs) {
+			run.delete();
+		}
+		runs.clear();
+		buffer = new ArrayList<>();
+	}
+
+	private void spill() throws IOException {
+		buffer.sort(ORDER);
+		File run = File.createTempFile("FileSync", ".run");
+		try (ManifestWriter writer = new ManifestWriter(new FileOutputStream(run), hashLen)) {
+			for (FileEntry entry : buffer) {
+				writer.write(entry);
+			}
+		} catch (IOException e) {
+			run.delete();
+			throw e;
+		}
+		runs.add(run);
+		buffer = new ArrayList<>(runSize);
+	}
+
+	private static class ListSource implements EntrySource {
+		private final List<FileEntry> entries;
+		private int index;
+
+		private ListSource(List<FileEntry> entries) {
+			this.entries = entries;
+		}
+
+		@Override
+		public FileEntry read() {
+			return index < entries.size() ? entries.get(index++) : null;
+		}
+
+		@Override
+		public void close() {
+			index = entries.size();
+		}
+	}
+
+	private static class MergeSource implements EntrySource {
+		private final List<File> runs;
+		private final List<ManifestReader> readers;
+		private final PriorityQueue<Head> queue;
+
+		private MergeSource(List<File> runs) throws IOException {
+			this.runs = runs;
+			this.readers = new ArrayList<>(runs.size());
+			this.queue = new PriorityQueue<>(runs.size(), Comparator.comparing(head -> head.entry, ORDER));
+			try {
+				for (File run : runs) {
+					ManifestReader reader = new ManifestReader(new FileInputStream(run));
+					readers.add(reader);
+					FileEntry entry = reader.read();
+					if (entry != null) {
+						queue.add(new Head(entry, reader));
+					}
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		@Override
+		public FileEntry read() throws IOException {
+			Head head = queue.poll();
+			if (head == null) {
+				return null;
+			}
+			FileEntry entry = head.entry;
+			head.entry = head.reader.read();
+			if (head.entry != null) {
+				queue.add(head);
+			}
+			return entry;
+		}
+
+		@Override
+		public void close() throws IOException {
+			queue.clear();
+			for (ManifestReader reader : readers) {
+				reader.close();
+			}
+			for (File run : runs) {
+				run.delete();
+			}
+		}
+	}
+
+	private static class Head {
+		private FileEntry entry;
+		private final ManifestReader reader;
+
+		private Head(FileEntry entry, ManifestReader reader) {
+			this.entry = entry;
+			this.reader = reader;
+		}
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright © 2021 TongZhen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package file.sync.tool;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 二进制清单写入器
+ * <p>
+ * 格式：4字节魔数、1字节版本号、1字节哈希长度，之后是若干条目，以类型 {@link #TYPE_END} 结束。
+ * 每个条目依次为1字节类型、与上一条路径共同前缀的字节数(varint)、剩余路径的字节数(varint)、
+ * 剩余路径的UTF-8字节，文件条目之后是原始哈希值，版本2还有文件大小和修改时间(varint)。
+ * 条目按路径排序写入时前缀压缩效果最好
+ *
+ * @author shouchen
+ */
+public class ManifestWriter implements Closeable {
+	static final int MAGIC = 0x46534d46;
+	static final int VERSION = 2;
+	/**
+	 * 不含文件大小和修改时间的旧版本
+	 */
+	static final int VERSION_NO_METADATA = 1;
+	static final int TYPE_END = 0;
+	static final int TYPE_FILE = 1;
+	static final int TYPE_DIR = 2;
+	/**
+	 * 清单中的哈希长度，较短的哈希在末尾补零
+	 */
+	public static final int HASH_LEN = 32;
+	private final OutputStream output;
+	private final int hashLen;
+	private final boolean metadata;
+	private byte[] lastPath;
+
+	/**
+	 * @param output  输出流，关闭写入器时一并关闭
+	 * @param hashLen 哈希长度
+	 * @throws IOException IO异常
+	 */
+	public ManifestWriter(OutputStream output, int hashLen) throws IOException {
+		this(output, hashLen, true);
+	}
+
+	/**
+	 * @param output   输出流，关闭写入器时一并关闭
+	 * @param hashLen  哈希长度
+	 * @param metadata 是否写入文件大小和修改时间，对方不支持时使用旧版本格式
+	 * @throws IOException IO异常
+	 */
+	public ManifestWriter(OutputStream output, int hashLen, boolean metadata) throws IOException {
+		this.output = new BufferedOutputStream(output);
+		this.hashLen = hashLen;
+		this.metadata = metadata;
+		this.lastPath = new byte[0];
+		writeInt(MAGIC);
+		this.output.write(metadata ? VERSION : VERSION_NO_METADATA);
+		this.output.write(hashLen);
+	}
+
+	public void write(FileEntry entry) throws IOException {
+		byte[] path = entry.getPath().getBytes(StandardCharsets.UTF_8);
+		int shared = 0;
+		int max = Math.min(path.length, lastPath.length);
+		while (shared < max && path[shared] == lastPath[shared]) {
+			shared++;
+		}
+		output.write(entry.isDir() ? TYPE_DIR : TYPE_FILE);
+		writeVarInt(shared);
+		writeVarInt(path.length - shared);
+		output.write(path, shared, path.length - shared);
+		if (!entry.isDir()) {
+			byte[] hash = entry.getHash();
+			if (hash == null || hash.length != hashLen) {
+				hash = new byte[hashLen];
+			}
+			output.write(hash);
+			if (metadata) {
+				writeVarLong(entry.getSize() + 1);
+				writeVarLong(entry.getMtime());
+			}
+		}
+		lastPath = path;
+	}
+
+	@Override
+	public void close() throws IOException {
+		output.write(TYPE_END);
+		output.close();
+	}
+
+	private void writeVarInt(int n) throws IOException {
+		while ((n & ~0x7f) != 0) {
+			output.write((n & 0x7f) | 0x80);
+			n >>>= 7;
+		}
+		output.write(n);
+	}
+
+	private void writeVarLong(long n) throws IOException {
+		while ((n & ~0x7fL) != 0) {
+			output.write((int) (n & 0x7f) | 0x80);
+			n >>>= 7;
+		}
+		output.write((int) n);
+	}
+
+	private void writeInt(int n) throws IOException {
+		output.write(n >>> 24);
+		output.write(n >>> 16);
+		output.write(n >>> 8);
+		output.write(n);
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright © 2021 TongZhen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package file.sync.tool;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * 目录哈希树
+ * <p>
+ * 每个目录的哈希由其子项按名称排序后的类型、名称和哈希计算得出，
+ * 根哈希相同说明整个目录树相同，比较时只需逐层展开哈希不同的目录
+ *
+ * @author shouchen
+ */
+public class MerkleTree {
+	private static final int TYPE_FILE = 1;
+	private static final int TYPE_DIR = 2;
+	private final byte[] rootHash;
+	private final Map<String, List<FileEntry>> listings;
+
+	/**
+	 * @param rootHash 根目录哈希
+	 * @param listings 目录相对路径到按路径排序的子项的映射，根目录为空字符串
+	 */
+	public MerkleTree(byte[] rootHash, Map<String, List<FileEntry>> listings) {
+		this.rootHash = rootHash;
+		this.listings = listings;
+	}
+
+	public byte[] getRootHash() {
+		return rootHash;
+	}
+
+	/**
+	 * 获取目录的子项
+	 *
+	 * @param dir 目录相对路径
+	 * @return 按路径排序的子项，目录不存在时为空列表
+	 */
+	public List<FileEntry> getChildren(String dir) {
+		return listings.getOrDefault(dir, Collections.emptyList());
+	}
+
+	/**
+	 * 计算目录哈希
+	 *
+	 * @param children 按路径排序的子项，目录子项的哈希为其目录哈希
+	 * @return 目录哈希
+	 */
+	public static byte[] hash(List<FileEntry> children) {
+		MessageDigest messageDigest;
+		try {
+			messageDigest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		for (FileEntry child : children) {
+			String path = child.getPath();
+			messageDigest.update((byte) (child.isDir() ? TYPE_DIR : TYPE_FILE));
+			messageDigest.update(path.substring(path.lastIndexOf('/') + 1).getBytes(StandardCharsets.UTF_8));
+			messageDigest.update((byte) 0);
+			messageDigest.update(normalize(child.getHash()));
+		}
+		return messageDigest.digest();
+	}
+
+	/**
+	 * 服务端：发送根哈希，然后应答客户端逐层请求的目录内容，直到收到空请求
+	 *
+	 * @param transfer 网络传输
+	 * @throws IOException IO异常
+	 */
+	public void serve(NetTransfer transfer) throws IOException {
+		try (DataOutputStream output = new DataOutputStream(transfer.frameOutput())) {
+			output.write(rootHash);
+		}
+		boolean metadata = transfer.hasFeature(NetTransfer.FEATURE_METADATA);
+		while (true) {
+			List<String> dirs;
+			try (DataInputStream input = new DataInputStream(transfer.frameInput())) {
+				int count = input.readInt();
+				dirs = new ArrayList<>(count);
+				for (int i = 0; i < count; i++) {
+					dirs.add(input.readUTF());
+				}
+			}
+			if (dirs.isEmpty()) {
+				return;
+			}
+			try (DataOutputStream output = new DataOutputStream(transfer.frameOutput())) {
+				for (String dir : dirs) {
+					List<FileEntry> children = getChildren(dir);
+					output.writeInt(children.size());
+					for (FileEntry child : children) {
+						output.write(child.isDir() ? TYPE_DIR : TYPE_FILE);
+						output.writeUTF(child.getPath());
+						output.write(normalize(child.getHash()));
+						if (metadata && !child.isDir()) {
+							output.writeLong(child.getSize());
+							output.writeLong(child.getMtime());
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * 客户端：读取服务端的根哈希
+	 *
+	 * @param transfer 网络传输
+	 * @return 根哈希
+	 * @throws IOException IO异常
+	 */
+	public static byte[] readRoot(NetTransfer transfer) throws IOException {
+		byte[] hash = new byte[ManifestWriter.HASH_LEN];
+		try (DataInputStream input = new DataInputStream(transfer.frameInput())) {
+			input.readFully(hash);
+		}
+		return hash;
+	}
+
+	/**
+	 * 客户端：一次请求多个服务端目录的内容，目录列表为空时结束比较
+	 *
+	 * @param transfer 网络传输
+	 * @param dirs     目录相对路径
+	 * @return 目录相对路径到按路径排序的子项的映射
+	 * @throws IOException IO异常
+	 */
+	public static Map<String, List<FileEntry>> fetch(NetTransfer transfer, List<String> dirs) throws IOException {
+		try (DataOutputStream output = new DataOutputStream(transfer.frameOutput())) {
+			output.writeInt(dirs.size());
+			for (String dir : dirs) {
+				output.writeUTF(dir);
+			}
+		}
+		Map<String, List<FileEntry>> result = new HashMap<>(dirs.size() * 2);
+		if (dirs.isEmpty()) {
+			return result;
+		}
+		boolean metadata = transfer.hasFeature(NetTransfer.FEATURE_METADATA);
+		try (DataInputStream input = new DataInputStream(transfer.frameInput())) {
+			for (String dir : dirs) {
+				int count = input.readInt();
+				List<FileEntry> children = new ArrayList<>(count);
+				for (int i = 0; i < count; i++) {
+					boolean isDir = input.readUnsignedByte() == TYPE_DIR;
+					String path = input.readUTF();
+					byte[] hash = new byte[ManifestWriter.HASH_LEN];
+					input.readFully(hash);
+					if (metadata && !isDir) {
+						long size = input.readLong();
+						long mtime = input.readLong();
+						children.add(new FileEntry(path, false, hash, size, mtime));
+					} else {
+						children.add(new FileEntry(path, isDir, hash));
+					}
+				}
+				result.put(dir, children);
+			}
+		}
+		return result;
+	}
+
+	private static byte[] normalize(byte[] hash) {
+		if (hash == null || hash.length != ManifestWriter.HASH_LEN) {
+			return new byte[ManifestWriter.HASH_LEN];
+		}
+		return hash;
+	}
+}
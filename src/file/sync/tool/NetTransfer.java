@@ -23,29 +23,135 @@ import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * Created with IntelliJ IDEA.
  * Description:
+ * 网络传输
+ * <p>
+ * 数据以帧为单位收发，帧头为4字节长度和1字节标志位，帧体为加密后的数据，
+ * 长度为 {@link StatusCode#DONE} 的帧头表示数据流结束。
+ * 结构化数据可以通过 {@link #frameOutput()} 和 {@link #frameInput()} 以流的形式分帧收发。
+ * 输出经过缓冲，只在 {@link #flush()} 或开始等待对方数据时才真正写出。
+ * 握手时协商启用压缩后，文件数据帧在加密前压缩，先试压缩一小段样本判断数据是否可压缩，
+ * 已压缩过的数据直接原样发送，帧头的 {@link #FLAG_COMPRESSED} 标志表示帧体经过压缩。
+ * 协商启用认证加密后，之后的帧改用由双方随机数派生的会话密钥和AES-GCM加密。
+ * 协商启用打包传输后，多个小文件可以依次写入路径、长度和内容，打包成一帧收发。
+ * 多帧的文件收发时读写磁盘、加解密和读写连接分阶段在不同线程中进行，阶段之间通过有界队列传递缓冲区。
+ * 设置了限速器时，每一帧写出前按帧的长度申请令牌
  *
  * @author shouchen
  * DateTime: 2021-02-18 10:18
  */
 public class NetTransfer {
-	private InputStream inputStream;
-	private OutputStream outputStream;
-	private Cipher encodeCipher;
-	private Cipher decodeCipher;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int CHUNK_SIZE = 1024 * 1024;
+	private static final int FRAME_SIZE = 64 * 1024;
+	private static final int FLAG_NONE = 0;
+	private static final int FLAG_COMPRESSED = 1;
+	private static final int MIN_COMPRESS_LEN = 512;
+	/**
+	 * 帧头长度
+	 */
+	private static final int FRAME_HEADER_LEN = 5;
+	private static final int COMPRESS_SAMPLE_LEN = 64 * 1024;
+	/**
+	 * 流水线每个阶段之间的缓冲区数量
+	 */
+	private static final int PIPELINE_DEPTH = 3;
+	private static final AtomicInteger PIPELINE_THREAD_ID = new AtomicInteger();
+	private static final ExecutorService PIPELINE_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "FileSyncPipeline-" + PIPELINE_THREAD_ID.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	});
+	/**
+	 * 功能：压缩
+	 */
+	public static final int FEATURE_COMPRESS = 1;
+	/**
+	 * 功能：按目录哈希树逐层比较
+	 */
+	public static final int FEATURE_MERKLE = 2;
+	/**
+	 * 功能：会话密钥和AES-GCM认证加密
+	 */
+	public static final int FEATURE_GCM = 4;
+	/**
+	 * 功能：小文件打包传输
+	 */
+	public static final int FEATURE_BATCH = 8;
+	/**
+	 * 功能：中断的文件传输从检查点继续
+	 */
+	public static final int FEATURE_RESUME = 16;
+	/**
+	 * 功能：使用快速哈希比较文件内容
+	 */
+	public static final int FEATURE_FAST_HASH = 32;
+	/**
+	 * 功能：清单携带文件大小和修改时间，接收的文件保留发送方的修改时间
+	 */
+	public static final int FEATURE_METADATA = 64;
+	/**
+	 * 功能：按文件大小和修改时间快速比较，不计算内容哈希
+	 */
+	public static final int FEATURE_QUICK_CHECK = 128;
+	/**
+	 * 功能：先交换文件大小，只为两端大小相同的文件计算哈希
+	 */
+	public static final int FEATURE_SIZE_FIRST = 256;
+	/**
+	 * 可以打包传输的单个文件的最大长度
+	 */
+	public static final int BATCH_FILE_SIZE = 64 * 1024;
+	/**
+	 * 打包帧中过大或不存在的文件，由调用方单独传输
+	 */
+	private static final int BATCH_SKIP = -1;
+	/**
+	 * 打包帧中因超出总长度上限而推迟的文件，由调用方重新打包
+	 */
+	private static final int BATCH_DEFER = -2;
+	private static final int NONCE_LEN = 16;
+	private static final SecureRandom RANDOM = new SecureRandom();
+	private final DataInputStream inputStream;
+	private final DataOutputStream outputStream;
+	private final SecretKey aesKey;
+	private FrameCipher encodeCipher;
+	private FrameCipher decodeCipher;
+	private final Frame inFrame;
+	private final Frame outFrame;
+	private byte[] decodeBuf;
+	private int decodeLen;
+	private int features;
+	private Deflater deflater;
+	private Inflater inflater;
+	private byte[] compressBuf;
+	private byte[] inflateBuf;
+	private RateLimiter rateLimiter;
 
 	public NetTransfer(InputStream inputStream, OutputStream outputStream, String aesCode) {
-		this.inputStream = inputStream;
-		this.outputStream = outputStream;
-		SecretKey aesKey = SecretKeyUtils.parseAesKey(aesCode);
+		this.inputStream = new DataInputStream(new BufferedInputStream(inputStream, BUFFER_SIZE));
+		this.outputStream = new DataOutputStream(new BufferedOutputStream(outputStream, BUFFER_SIZE));
+		this.inFrame = new Frame();
+		this.outFrame = new Frame();
+		this.decodeBuf = new byte[0];
+		this.compressBuf = new byte[0];
+		this.inflateBuf = new byte[0];
+		this.aesKey = SecretKeyUtils.parseAesKey(aesCode);
 		try {
-			encodeCipher = Cipher.getInstance(SecretKeyUtils.ALGORITHM);
-			encodeCipher.init(Cipher.ENCRYPT_MODE, aesKey);
-			decodeCipher = Cipher.getInstance(SecretKeyUtils.ALGORITHM);
-			decodeCipher.init(Cipher.DECRYPT_MODE, aesKey);
+			encodeCipher = FrameCipher.legacy(aesKey, Cipher.ENCRYPT_MODE);
+			decodeCipher = FrameCipher.legacy(aesKey, Cipher.DECRYPT_MODE);
 		} catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
 			Logger.warn(e);
 		} catch (InvalidKeyException e) {
@@ -61,20 +167,147 @@ public class NetTransfer {
 			Logger.warn(e);
 			buf = "unknownHost".getBytes(StandardCharsets.UTF_8);
 		}
-		buf = encodeCipher.doFinal(buf);
-		sendInt(buf.length);
-		outputStream.write(buf);
-		outputStream.flush();
+		writeFrame(buf, 0, buf.length, false);
+		flush();
 	}
 
 	public String checkIdentity() throws IOException, BadPaddingException, IllegalBlockSizeException {
-		int len = getInt();
-		byte[] buf = new byte[len];
-		for (int i = 0; i < len; i++) {
-			buf[i] = (byte) inputStream.read();
+		readFrame(getInt());
+		return new String(decodeBuf, 0, decodeLen, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * 根据配置生成本端支持的功能
+	 *
+	 * @param config 配置
+	 * @return 功能位
+	 */
+	public static int localFeatures(FileSyncConfig config) {
+		int features = 0;
+		if (config.getCompress()) {
+			features |= FEATURE_COMPRESS;
+		}
+		if (config.getMerkle()) {
+			features |= FEATURE_MERKLE;
+		}
+		if (config.getAesGcm()) {
+			features |= FEATURE_GCM;
+		}
+		if (config.getBatchSize() > 0) {
+			features |= FEATURE_BATCH;
+		}
+		features |= FEATURE_RESUME;
+		if (config.getFastHash()) {
+			features |= FEATURE_FAST_HASH;
+		}
+		features |= FEATURE_METADATA;
+		features |= FEATURE_SIZE_FIRST;
+		if (!config.getChecksum()) {
+			features |= FEATURE_QUICK_CHECK;
+		}
+		return features;
+	}
+
+	/**
+	 * 协商后是否启用了某个功能
+	 *
+	 * @param feature 功能位
+	 * @return 是否启用
+	 */
+	public boolean hasFeature(int feature) {
+		return (features & feature) != 0;
+	}
+
+	/**
+	 * 协商后双方计算文件内容哈希使用的算法
+	 *
+	 * @return 算法编号
+	 */
+	public int hashAlgorithm() {
+		return hasFeature(FEATURE_FAST_HASH) ? ContentHash.MURMUR3_128 : ContentHash.SHA256;
+	}
+
+	/**
+	 * 协商后是否推迟计算哈希，只在按内容比较且逐条交换清单时使用，
+	 * 目录哈希树需要事先算出全部哈希，快速比较则不计算哈希
+	 *
+	 * @return 是否先交换文件大小
+	 */
+	public boolean deferHash() {
+		return hasFeature(FEATURE_SIZE_FIRST) && !hasFeature(FEATURE_QUICK_CHECK) && !hasFeature(FEATURE_MERKLE);
+	}
+
+	/**
+	 * 协商后分析完是否交换大小相同的文件的内容哈希：推迟计算哈希时交换两端大小相同的所有文件，
+	 * 快速比较时交换大小相同但修改时间不同的文件，目录哈希树的叶子也一样；
+	 * 按内容比较的目录哈希树已经带有内容哈希，不需要交换
+	 *
+	 * @return 是否交换哈希
+	 */
+	public boolean hashExchange() {
+		return hasFeature(FEATURE_SIZE_FIRST) && (hasFeature(FEATURE_QUICK_CHECK) || !hasFeature(FEATURE_MERKLE));
+	}
+
+	/**
+	 * 客户端：发送本端支持的功能和随机数，并启用服务端确认的功能
+	 *
+	 * @param features 本端支持的功能
+	 * @return 双方都支持的功能
+	 * @throws IOException 连接断开
+	 */
+	public int requestFeatures(int features) throws IOException {
+		byte[] clientNonce = new byte[NONCE_LEN];
+		RANDOM.nextBytes(clientNonce);
+		sendInt(features);
+		outputStream.write(clientNonce);
+		flush();
+		int accepted = getInt() & features;
+		byte[] serverNonce = new byte[NONCE_LEN];
+		inputStream.readFully(serverNonce);
+		enableFeatures(accepted, clientNonce, serverNonce, true);
+		return this.features;
+	}
+
+	/**
+	 * 服务端：读取客户端支持的功能和随机数，回复并启用双方都支持的功能
+	 *
+	 * @param features 本端支持的功能
+	 * @return 双方都支持的功能
+	 * @throws IOException 连接断开
+	 */
+	public int acceptFeatures(int features) throws IOException {
+		int accepted = getInt() & features;
+		byte[] clientNonce = new byte[NONCE_LEN];
+		inputStream.readFully(clientNonce);
+		byte[] serverNonce = new byte[NONCE_LEN];
+		RANDOM.nextBytes(serverNonce);
+		sendInt(accepted);
+		outputStream.write(serverNonce);
+		flush();
+		enableFeatures(accepted, clientNonce, serverNonce, false);
+		return this.features;
+	}
+
+	/**
+	 * 启用协商后的功能，启用认证加密时由双方的随机数派生会话密钥，之后的帧都使用会话密钥加密
+	 */
+	private void enableFeatures(int features, byte[] clientNonce, byte[] serverNonce, boolean client) throws IOException {
+		this.features = features;
+		if ((features & FEATURE_GCM) != 0) {
+			SecretKey sessionKey = SecretKeyUtils.deriveSessionKey(aesKey, clientNonce, serverNonce);
+			int sendDirection = client ? FrameCipher.CLIENT_TO_SERVER : FrameCipher.SERVER_TO_CLIENT;
+			int receiveDirection = client ? FrameCipher.SERVER_TO_CLIENT : FrameCipher.CLIENT_TO_SERVER;
+			try {
+				encodeCipher = FrameCipher.gcm(sessionKey, Cipher.ENCRYPT_MODE, sendDirection);
+				decodeCipher = FrameCipher.gcm(sessionKey, Cipher.DECRYPT_MODE, receiveDirection);
+			} catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+				throw new IOException(e);
+			}
+		}
+		if ((features & FEATURE_COMPRESS) != 0) {
+			deflater = new Deflater(Deflater.BEST_SPEED);
+			inflater = new Inflater();
 		}
-		buf = decodeCipher.doFinal(buf);
-		return new String(buf, StandardCharsets.UTF_8);
 	}
 
 	public void sendObject(Object object) throws IOException, BadPaddingException, IllegalBlockSizeException {
@@ -85,20 +318,12 @@ public class NetTransfer {
 			objectOutputStream.flush();
 			buf = buffer.toByteArray();
 		}
-		buf = encodeCipher.doFinal(buf);
-		sendInt(buf.length);
-		outputStream.write(buf);
-		outputStream.flush();
+		writeFrame(buf, 0, buf.length, false);
 	}
 
 	public Object getObject() throws IOException, BadPaddingException, IllegalBlockSizeException, ClassNotFoundException {
-		int len = getInt();
-		byte[] buf = new byte[len];
-		for (int i = 0; i < len; i++) {
-			buf[i] = (byte) inputStream.read();
-		}
-		buf = decodeCipher.doFinal(buf);
-		try (ByteArrayInputStream input = new ByteArrayInputStream(buf);
+		readFrame(getInt());
+		try (ByteArrayInputStream input = new ByteArrayInputStream(decodeBuf, 0, decodeLen);
 			 ObjectInputStream objectInputStream = new ObjectInputStream(input)) {
 			return objectInputStream.readObject();
 		}
@@ -106,83 +331,741 @@ public class NetTransfer {
 
 	public void sendString(String str) throws BadPaddingException, IllegalBlockSizeException, IOException {
 		byte[] buf = str.getBytes(StandardCharsets.UTF_8);
-		buf = encodeCipher.doFinal(buf);
-		sendInt(buf.length);
-		outputStream.write(buf);
-		outputStream.flush();
+		writeFrame(buf, 0, buf.length, false);
 	}
 
 	public String getString() throws IOException, BadPaddingException, IllegalBlockSizeException {
-		int len = getInt();
-		byte[] buf = new byte[len];
-		for (int i = 0; i < len; i++) {
-			buf[i] = (byte) inputStream.read();
-		}
-		buf = decodeCipher.doFinal(buf);
-		return new String(buf, StandardCharsets.UTF_8);
+		readFrame(getInt());
+		return new String(decodeBuf, 0, decodeLen, StandardCharsets.UTF_8);
 	}
 
 	public void sendFile(File inputFile) throws IOException, BadPaddingException, IllegalBlockSizeException {
-		byte[] buf;
-		int lenCount = 0;
-		try (FileInputStream fileInputStream = new FileInputStream(inputFile);
-			 BufferedInputStream bufferedInputStream = new BufferedInputStream(fileInputStream)) {
-			byte[] bytes = new byte[1024 * 1024];
-			int len;
+		sendFile(inputFile, 0);
+	}
+
+	/**
+	 * 从指定位置开始发送文件，启用元数据时最后发送读取前的修改时间，
+	 * 发送期间文件被修改时对方记录的是较早的时间，下次比较时仍会发现变化
+	 *
+	 * @param inputFile 文件
+	 * @param offset    开始位置
+	 */
+	public void sendFile(File inputFile, long offset) throws IOException, BadPaddingException, IllegalBlockSizeException {
+		long lenCount = offset;
+		long mtime = inputFile.lastModified();
+		try (FileInputStream fileInputStream = new FileInputStream(inputFile)) {
+			if (fileInputStream.skip(offset) != offset) {
+				throw new EOFException("文件长度不足 " + inputFile);
+			}
 			Logger.out("已处理 " + lenCount);
-			while ((len = bufferedInputStream.read(bytes)) != -1) {
-				buf = encodeCipher.doFinal(bytes, 0, len);
-				sendInt(buf.length);
-				outputStream.write(buf);
-				outputStream.flush();
-				lenCount += len;
-				Logger.out("已处理 " + lenCount);
+			if (inputFile.length() - offset > CHUNK_SIZE) {
+				sendPipelined(fileInputStream, lenCount);
+			} else {
+				byte[] bytes = new byte[CHUNK_SIZE];
+				int len;
+				while ((len = readChunk(fileInputStream, bytes)) > 0) {
+					writeFrame(bytes, 0, len, true);
+					lenCount += len;
+					Logger.out("已处理 " + lenCount);
+				}
 			}
 			sendInt(StatusCode.DONE);
+			if (hasFeature(FEATURE_METADATA)) {
+				sendLong(mtime);
+			}
 			Logger.out("完成");
 		}
 	}
 
-	public void getFile(File outputFile) throws IOException, BadPaddingException, IllegalBlockSizeException {
-		File parentDir = outputFile.getParentFile();
-		if (!parentDir.exists()) {
-			if (!outputFile.getParentFile().mkdirs()) {
-				throw new IOException("目录创建失败 " + outputFile.getParent());
+	/**
+	 * 后台线程读取文件，当前线程压缩加密，另一个后台线程写入连接
+	 */
+	private void sendPipelined(InputStream input, long lenCount) throws IOException, BadPaddingException, IllegalBlockSizeException {
+		BufferQueue<Frame> chunks = new BufferQueue<>(newFrames());
+		BufferQueue<Frame> frames = new BufferQueue<>(newFrames());
+		Future<?> reader = PIPELINE_EXECUTOR.submit(() -> {
+			try {
+				while (true) {
+					Frame chunk = chunks.obtain();
+					chunk.ensureCapacity(CHUNK_SIZE);
+					chunk.size = readChunk(input, chunk.data);
+					if (chunk.size == 0) {
+						chunks.end();
+						return null;
+					}
+					chunks.put(chunk);
+				}
+			} catch (Exception e) {
+				chunks.fail(e);
+				throw e;
+			}
+		});
+		Future<?> writer = PIPELINE_EXECUTOR.submit(() -> {
+			try {
+				Frame frame;
+				while ((frame = frames.take()) != null) {
+					writeFrame(frame);
+					frames.release(frame);
+				}
+				return null;
+			} catch (Exception e) {
+				frames.fail(e);
+				throw e;
+			}
+		});
+		boolean done = false;
+		try {
+			Frame chunk;
+			while ((chunk = chunks.take()) != null) {
+				Frame frame = frames.obtain();
+				encodeFrame(chunk.data, 0, chunk.size, true, frame);
+				lenCount += chunk.size;
+				chunks.release(chunk);
+				frames.put(frame);
+				Logger.out("已处理 " + lenCount);
+			}
+			frames.end();
+			await(writer);
+			done = true;
+		} finally {
+			if (!done) {
+				// 连接已经无法继续使用，不等待可能阻塞在连接上的写入线程
+				writer.cancel(true);
+				chunks.fail(new IOException("发送中止"));
+				awaitQuietly(reader);
 			}
 		}
-		try (FileOutputStream fileOutputStream = new FileOutputStream(outputFile);
-			 BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(fileOutputStream)) {
-			int len;
-			int lenCount = 0;
+	}
+
+	public void getFile(File outputFile) throws IOException, BadPaddingException, IllegalBlockSizeException {
+		getFile(new PartialFile(outputFile), 0);
+	}
+
+	/**
+	 * 接收文件，数据先写入临时文件，接收完毕后替换目标文件，中途断开时保留临时文件和检查点
+	 *
+	 * @param partialFile 临时文件
+	 * @param offset      对方开始发送的位置
+	 */
+	public void getFile(PartialFile partialFile, long offset) throws IOException, BadPaddingException, IllegalBlockSizeException {
+		try (PartialFile output = partialFile) {
+			output.open(offset);
+			long lenCount = offset;
 			Logger.out("已处理 " + lenCount);
-			while ((len = getInt()) != StatusCode.DONE) {
-				byte[] buf = new byte[len];
-				for (int i = 0; i < len; i++) {
-					buf[i] = (byte) inputStream.read();
-				}
-				buf = decodeCipher.doFinal(buf);
-				bufferedOutputStream.write(buf);
-				lenCount += len;
+			int len = getInt();
+			if (len != StatusCode.DONE) {
+				readFrame(len);
+				output.write(decodeBuf, 0, decodeLen);
+				lenCount += decodeLen;
 				Logger.out("已处理 " + lenCount);
+				len = getInt();
+				if (len != StatusCode.DONE) {
+					receivePipelined(output, len, lenCount);
+				}
 			}
-			bufferedOutputStream.flush();
+			output.commit(hasFeature(FEATURE_METADATA) ? getLong() : 0);
 			Logger.out("完成");
 		}
 	}
 
+	/**
+	 * 后台线程读取连接，当前线程解密解压，另一个后台线程写入文件
+	 *
+	 * @param len 已经读到的下一帧的长度
+	 */
+	private void receivePipelined(PartialFile output, int len, long lenCount) throws IOException, BadPaddingException, IllegalBlockSizeException {
+		BufferQueue<Frame> frames = new BufferQueue<>(newFrames());
+		BufferQueue<Frame> chunks = new BufferQueue<>(newFrames());
+		Future<?> reader = PIPELINE_EXECUTOR.submit(() -> {
+			try {
+				int frameLen = len;
+				while (frameLen != StatusCode.DONE) {
+					Frame frame = frames.obtain();
+					readFrame(frameLen, frame);
+					frames.put(frame);
+					frameLen = inputStream.readInt();
+				}
+				frames.end();
+				return null;
+			} catch (Exception e) {
+				frames.fail(e);
+				throw e;
+			}
+		});
+		Future<?> writer = PIPELINE_EXECUTOR.submit(() -> {
+			try {
+				Frame chunk;
+				while ((chunk = chunks.take()) != null) {
+					output.write(chunk.data, 0, chunk.size);
+					chunks.release(chunk);
+				}
+				return null;
+			} catch (Exception e) {
+				chunks.fail(e);
+				throw e;
+			}
+		});
+		boolean done = false;
+		try {
+			Frame frame;
+			while ((frame = frames.take()) != null) {
+				decodeFrame(frame);
+				frames.release(frame);
+				Frame chunk = chunks.obtain();
+				chunk.ensureCapacity(decodeLen);
+				System.arraycopy(decodeBuf, 0, chunk.data, 0, decodeLen);
+				chunk.size = decodeLen;
+				chunks.put(chunk);
+				lenCount += decodeLen;
+				Logger.out("已处理 " + lenCount);
+			}
+			chunks.end();
+			await(writer);
+			await(reader);
+			done = true;
+		} finally {
+			if (!done) {
+				// 连接已经无法继续使用，不等待可能阻塞在连接上的读取线程，但要等文件写完再记录检查点
+				reader.cancel(true);
+				chunks.fail(new IOException("接收中止"));
+				awaitQuietly(writer);
+			}
+		}
+	}
+
+	private static List<Frame> newFrames() {
+		List<Frame> frames = new ArrayList<>(PIPELINE_DEPTH);
+		for (int i = 0; i < PIPELINE_DEPTH; i++) {
+			frames.add(new Frame());
+		}
+		return frames;
+	}
+
+	private static void await(Future<?> future) throws IOException {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+		}
+	}
+
+	private static void awaitQuietly(Future<?> future) {
+		try {
+			await(future);
+		} catch (IOException | CancellationException e) {
+			// 已经在处理更早的异常
+		}
+	}
+
+	/**
+	 * 把一组路径打包成一帧发送
+	 *
+	 * @param paths 路径
+	 */
+	public void sendStrings(List<String> paths) throws IOException, BadPaddingException, IllegalBlockSizeException {
+		PackBuffer pack = new PackBuffer();
+		pack.data.writeInt(paths.size());
+		for (String path : paths) {
+			pack.data.writeUTF(path);
+		}
+		writeFrame(pack.buffer(), 0, pack.size(), true);
+	}
+
+	public List<String> getStrings() throws IOException, BadPaddingException, IllegalBlockSizeException {
+		readFrame(getInt());
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(decodeBuf, 0, decodeLen));
+		int count = input.readInt();
+		if (count < 0) {
+			throw new IOException("错误的路径数 " + count);
+		}
+		List<String> paths = new ArrayList<>(Math.min(count, 1024));
+		for (int i = 0; i < count; i++) {
+			paths.add(input.readUTF());
+		}
+		return paths;
+	}
+
+	/**
+	 * 把多个小文件打包成一帧发送，每个文件依次写入路径、长度和内容，启用元数据时再写入修改时间。
+	 * 过大或不存在的文件以及超出总长度上限的文件只写入路径，接收方据此单独传输或重新打包
+	 *
+	 * @param dir     同步目录
+	 * @param paths   相对路径
+	 * @param maxSize 打包文件内容的总长度上限，至少打包一个文件
+	 * @return 没有打包的文件
+	 */
+	public List<String> sendBatch(File dir, List<String> paths, int maxSize) throws IOException, BadPaddingException, IllegalBlockSizeException {
+		PackBuffer pack = new PackBuffer();
+		List<String> skipped = new ArrayList<>();
+		boolean metadata = hasFeature(FEATURE_METADATA);
+		long packedLen = 0;
+		for (String path : paths) {
+			File file = new File(dir, path);
+			long mtime = file.lastModified();
+			long len = file.isFile() ? file.length() : -1;
+			pack.data.writeUTF(path);
+			int mark = pack.size();
+			if (len >= 0 && len <= BATCH_FILE_SIZE && packedLen > 0 && packedLen + len > maxSize) {
+				pack.data.writeInt(BATCH_DEFER);
+				skipped.add(path);
+				continue;
+			}
+			if (len >= 0 && len <= BATCH_FILE_SIZE) {
+				pack.data.writeInt((int) len);
+				if (pack.readFile(file, (int) len)) {
+					if (metadata) {
+						pack.data.writeLong(mtime);
+					}
+					packedLen += len;
+					continue;
+				}
+				pack.truncate(mark);
+			}
+			pack.data.writeInt(BATCH_SKIP);
+			skipped.add(path);
+		}
+		writeFrame(pack.buffer(), 0, pack.size(), true);
+		return skipped;
+	}
+
+	/**
+	 * 接收并解包一帧打包文件，每个文件写入临时文件后替换目标文件
+	 *
+	 * @param dir      同步目录
+	 * @param deferred 因超出总长度上限而推迟的文件，调用方稍后重新打包
+	 * @return 过大或不存在而没有打包的文件，调用方单独传输
+	 */
+	public List<String> getBatch(File dir, List<String> deferred) throws IOException, BadPaddingException, IllegalBlockSizeException {
+		readFrame(getInt());
+		ByteArrayInputStream packInput = new ByteArrayInputStream(decodeBuf, 0, decodeLen);
+		DataInputStream input = new DataInputStream(packInput);
+		List<String> skipped = new ArrayList<>();
+		boolean metadata = hasFeature(FEATURE_METADATA);
+		while (packInput.available() > 0) {
+			String path = input.readUTF();
+			int len = input.readInt();
+			if (len == BATCH_SKIP) {
+				skipped.add(path);
+				continue;
+			}
+			if (len == BATCH_DEFER) {
+				deferred.add(path);
+				continue;
+			}
+			if (len < 0 || len > packInput.available()) {
+				throw new IOException("错误的打包文件长度 " + len);
+			}
+			// 与单独接收的文件一样先写入临时文件，解包完整后再替换目标文件
+			try (PartialFile output = new PartialFile(new File(dir, path))) {
+				output.open(0);
+				output.write(decodeBuf, decodeLen - packInput.available(), len);
+				input.skipBytes(len);
+				output.commit(metadata ? input.readLong() : 0);
+			}
+			Logger.info("解包文件 " + path);
+		}
+		return skipped;
+	}
+
+	/**
+	 * 创建一个分帧输出流，写入的数据按帧加密发送，关闭时发送结束标记
+	 *
+	 * @return 输出流
+	 */
+	public OutputStream frameOutput() {
+		return new FrameOutputStream();
+	}
+
+	/**
+	 * 创建一个分帧输入流，读到结束标记时返回-1
+	 *
+	 * @return 输入流
+	 */
+	public InputStream frameInput() {
+		return new FrameInputStream();
+	}
+
+	/**
+	 * 设置发送限速器，多个连接可以共用一个限速器
+	 *
+	 * @param rateLimiter 限速器，null表示不限速
+	 */
+	void setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * 是否有已经到达但尚未读取的数据
+	 *
+	 * @return 是否有数据
+	 * @throws IOException IO异常
+	 */
+	public boolean hasBufferedInput() throws IOException {
+		return inputStream.available() > 0;
+	}
+
 	public void sendInt(int n) throws IOException {
-		outputStream.write((n >> 24) & 0xff);
-		outputStream.write((n >> 16) & 0xff);
-		outputStream.write((n >> 8) & 0xff);
-		outputStream.write(n & 0xff);
-		outputStream.flush();
+		outputStream.writeInt(n);
+	}
+
+	public void sendLong(long n) throws IOException {
+		outputStream.writeLong(n);
 	}
 
+	public long getLong() throws IOException {
+		if (inputStream.available() == 0) {
+			flush();
+		}
+		return inputStream.readLong();
+	}
+
+	/**
+	 * 读取一个整数，没有可读数据而需要等待时先写出所有缓冲的数据，避免双方互相等待，
+	 * 对方连续发来的多个请求可以连续应答而不必逐个刷新
+	 *
+	 * @return 整数
+	 * @throws IOException 连接断开
+	 */
 	public int getInt() throws IOException {
-		int n = inputStream.read() << 24;
-		n |= inputStream.read() << 16;
-		n |= inputStream.read() << 8;
-		n |= inputStream.read();
-		return n;
+		if (inputStream.available() == 0) {
+			flush();
+		}
+		return inputStream.readInt();
+	}
+
+	/**
+	 * 写出缓冲区中的数据，在一条消息发送完毕时调用
+	 *
+	 * @throws IOException 连接断开
+	 */
+	public void flush() throws IOException {
+		outputStream.flush();
+	}
+
+	/**
+	 * 加密并写入一帧数据，不刷新输出
+	 *
+	 * @param compress 数据是否值得尝试压缩
+	 */
+	private void writeFrame(byte[] buf, int off, int len, boolean compress) throws IOException, BadPaddingException, IllegalBlockSizeException {
+		encodeFrame(buf, off, len, compress, outFrame);
+		writeFrame(outFrame);
+	}
+
+	/**
+	 * 按需压缩并加密一帧数据
+	 *
+	 * @param compress 数据是否值得尝试压缩
+	 * @param frame    输出的帧
+	 */
+	private void encodeFrame(byte[] buf, int off, int len, boolean compress, Frame frame) throws IOException, BadPaddingException, IllegalBlockSizeException {
+		int flags = FLAG_NONE;
+		if (compress && deflater != null && len >= MIN_COMPRESS_LEN) {
+			int compressLen = compress(buf, off, len);
+			if (compressLen > 0) {
+				buf = compressBuf;
+				off = 0;
+				len = compressLen;
+				flags |= FLAG_COMPRESSED;
+			}
+		}
+		frame.ensureCapacity(encodeCipher.getOutputSize(len));
+		frame.size = encodeCipher.process(flags, buf, off, len, frame.data, 0);
+		frame.flags = flags;
+	}
+
+	private void writeFrame(Frame frame) throws IOException {
+		if (rateLimiter != null) {
+			rateLimiter.acquire(FRAME_HEADER_LEN + frame.size);
+		}
+		outputStream.writeInt(frame.size);
+		outputStream.writeByte(frame.flags);
+		outputStream.write(frame.data, 0, frame.size);
+	}
+
+	/**
+	 * 把数据压缩到 {@link #compressBuf}，前4字节为原始长度。
+	 * 先压缩开头的一段样本，样本压缩不到九成以下时认为数据不可压缩，直接放弃
+	 *
+	 * @return 压缩后的长度，不值得压缩时返回-1
+	 */
+	private int compress(byte[] buf, int off, int len) {
+		if (compressBuf.length < len + 4) {
+			compressBuf = new byte[len + 4];
+		}
+		if (len > COMPRESS_SAMPLE_LEN && deflate(buf, off, COMPRESS_SAMPLE_LEN) < 0) {
+			return -1;
+		}
+		int compressLen = deflate(buf, off, len);
+		if (compressLen < 0) {
+			return -1;
+		}
+		compressBuf[0] = (byte) (len >> 24);
+		compressBuf[1] = (byte) (len >> 16);
+		compressBuf[2] = (byte) (len >> 8);
+		compressBuf[3] = (byte) len;
+		return compressLen + 4;
+	}
+
+	/**
+	 * 压缩到 {@link #compressBuf} 第4字节之后，输出超过原始长度九成时中止
+	 *
+	 * @return 压缩后的长度，中止时返回-1
+	 */
+	private int deflate(byte[] buf, int off, int len) {
+		int limit = len - len / 10;
+		deflater.reset();
+		deflater.setInput(buf, off, len);
+		deflater.finish();
+		int count = 0;
+		while (!deflater.finished() && count < limit) {
+			count += deflater.deflate(compressBuf, 4 + count, limit - count);
+		}
+		return deflater.finished() ? count : -1;
+	}
+
+	/**
+	 * 读取长度为len的帧，解密并按需解压到 {@link #decodeBuf}
+	 */
+	private void readFrame(int len) throws IOException, BadPaddingException, IllegalBlockSizeException {
+		readFrame(len, inFrame);
+		decodeFrame(inFrame);
+	}
+
+	/**
+	 * 读取长度为len的帧，不解密
+	 */
+	private void readFrame(int len, Frame frame) throws IOException {
+		if (len <= 0) {
+			throw new IOException("错误的帧长度 " + len);
+		}
+		frame.flags = inputStream.readUnsignedByte();
+		frame.ensureCapacity(len);
+		inputStream.readFully(frame.data, 0, len);
+		frame.size = len;
+	}
+
+	/**
+	 * 解密并按需解压到 {@link #decodeBuf}
+	 */
+	private void decodeFrame(Frame frame) throws IOException, BadPaddingException, IllegalBlockSizeException {
+		int size = decodeCipher.getOutputSize(frame.size);
+		if (decodeBuf.length < size) {
+			decodeBuf = new byte[size];
+		}
+		decodeLen = decodeCipher.process(frame.flags, frame.data, 0, frame.size, decodeBuf, 0);
+		if ((frame.flags & FLAG_COMPRESSED) != 0) {
+			inflate();
+		}
+	}
+
+	/**
+	 * 解压 {@link #decodeBuf} 中的数据，解压结果替换为新的 {@link #decodeBuf}
+	 */
+	private void inflate() throws IOException {
+		if (inflater == null || decodeLen < 4) {
+			throw new IOException("未协商的压缩帧");
+		}
+		int rawLen = (decodeBuf[0] & 0xff) << 24 | (decodeBuf[1] & 0xff) << 16
+				| (decodeBuf[2] & 0xff) << 8 | (decodeBuf[3] & 0xff);
+		if (rawLen < 0) {
+			throw new IOException("错误的压缩帧长度 " + rawLen);
+		}
+		if (inflateBuf.length < rawLen) {
+			inflateBuf = new byte[rawLen];
+		}
+		inflater.reset();
+		inflater.setInput(decodeBuf, 4, decodeLen - 4);
+		try {
+			int count = 0;
+			while (count < rawLen && !inflater.finished()) {
+				int n = inflater.inflate(inflateBuf, count, rawLen - count);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				count += n;
+			}
+			if (count != rawLen) {
+				throw new IOException("压缩帧长度不符");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		}
+		byte[] buf = decodeBuf;
+		decodeBuf = inflateBuf;
+		inflateBuf = buf;
+		decodeLen = rawLen;
+	}
+
+	/**
+	 * 一帧数据及其标志位，在流水线各阶段之间传递时也用作数据块
+	 */
+	private static class Frame {
+		private byte[] data = new byte[0];
+		private int size;
+		private int flags;
+
+		private void ensureCapacity(int capacity) {
+			if (data.length < capacity) {
+				data = new byte[capacity];
+			}
+		}
+	}
+
+	/**
+	 * 打包缓冲区，直接暴露内部数组用于加密
+	 */
+	private static class PackBuffer extends ByteArrayOutputStream {
+		private final DataOutputStream data = new DataOutputStream(this);
+
+		private byte[] buffer() {
+			return buf;
+		}
+
+		private void truncate(int size) {
+			count = size;
+		}
+
+		/**
+		 * 追加文件的全部内容
+		 *
+		 * @return 文件的实际长度与len不符时返回false
+		 */
+		private boolean readFile(File file, int len) throws IOException {
+			if (buf.length < count + len + 1) {
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + len + 1));
+			}
+			int total = 0;
+			try (FileInputStream input = new FileInputStream(file)) {
+				int n;
+				while (total <= len && (n = input.read(buf, count + total, len + 1 - total)) != -1) {
+					total += n;
+				}
+			}
+			if (total != len) {
+				return false;
+			}
+			count += len;
+			return true;
+		}
+	}
+
+	private class FrameOutputStream extends OutputStream {
+		private final byte[] buf = new byte[FRAME_SIZE];
+		private int count;
+		private boolean closed;
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == buf.length) {
+				writePending();
+			}
+			buf[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == buf.length) {
+					writePending();
+				}
+				int n = Math.min(len, buf.length - count);
+				System.arraycopy(b, off, buf, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			writePending();
+			sendInt(StatusCode.DONE);
+		}
+
+		private void writePending() throws IOException {
+			if (count == 0) {
+				return;
+			}
+			try {
+				writeFrame(buf, 0, count, true);
+			} catch (BadPaddingException | IllegalBlockSizeException e) {
+				throw new IOException(e);
+			}
+			count = 0;
+		}
+	}
+
+	private class FrameInputStream extends InputStream {
+		private int pos;
+		private int limit;
+		private boolean end;
+
+		@Override
+		public int read() throws IOException {
+			if (!fill()) {
+				return -1;
+			}
+			return decodeBuf[pos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			int n = Math.min(len, limit - pos);
+			System.arraycopy(decodeBuf, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			while (fill()) {
+				pos = limit;
+			}
+		}
+
+		private boolean fill() throws IOException {
+			while (pos == limit) {
+				if (end) {
+					return false;
+				}
+				int len = getInt();
+				if (len == StatusCode.DONE) {
+					end = true;
+					return false;
+				}
+				try {
+					readFrame(len);
+				} catch (BadPaddingException | IllegalBlockSizeException e) {
+					throw new IOException(e);
+				}
+				pos = 0;
+				limit = decodeLen;
+			}
+			return true;
+		}
+	}
+
+	private static int readChunk(InputStream input, byte[] buf) throws IOException {
+		int total = 0;
+		int len;
+		while (total < buf.length && (len = input.read(buf, total, buf.length - total)) != -1) {
+			total += len;
+		}
+		return total;
 	}
 }
@@ -0,0 +1,262 @@
+/*
+ * Copyright © 2021 TongZhen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package file.sync.tool;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * 未接收完的文件
+ * <p>
+ * 接收的数据先写入同目录下的 {@link #PART_SUFFIX} 临时文件，全部接收后替换目标文件，
+ * 中途断开时目标文件保持原样。接收过程中定期把已写入的长度和这部分数据的哈希记录到
+ * {@link #CHECKPOINT_SUFFIX} 检查点文件。下次传输同一文件时接收方先核对临时文件与检查点是否一致，
+ * 再由发送方核对自己文件开头相同长度的哈希，都一致才从该位置继续发送
+ *
+ * @author shouchen
+ */
+class PartialFile implements Closeable {
+	/**
+	 * 临时文件后缀
+	 */
+	static final String PART_SUFFIX = ".fspart";
+	/**
+	 * 检查点文件后缀
+	 */
+	static final String CHECKPOINT_SUFFIX = ".fspart.ckpt";
+	/**
+	 * 超过此大小的文件上传前询问服务端是否可以续传
+	 */
+	static final long RESUME_MIN_SIZE = 16 * 1024 * 1024;
+	/**
+	 * 每接收这么多数据记录一次检查点
+	 */
+	private static final long CHECKPOINT_INTERVAL = 16 * 1024 * 1024;
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	private final File target;
+	private final File partFile;
+	private final File checkpointFile;
+	private long checkpointOffset;
+	private String checkpointHash;
+	private MessageDigest digest;
+	private FileOutputStream output;
+	private long offset;
+	private long savedOffset;
+
+	PartialFile(File target) {
+		this.target = target;
+		this.partFile = new File(target.getPath() + PART_SUFFIX);
+		this.checkpointFile = new File(target.getPath() + CHECKPOINT_SUFFIX);
+		this.checkpointOffset = 0;
+		this.checkpointHash = "";
+	}
+
+	/**
+	 * 是否为未接收完的文件、其检查点或差量重建的临时文件，这些文件不参与同步
+	 *
+	 * @param name 文件名
+	 * @return 是否为临时文件
+	 */
+	static boolean isPartialFile(String name) {
+		return name.endsWith(PART_SUFFIX) || name.endsWith(CHECKPOINT_SUFFIX) || name.endsWith(DeltaSync.TMP_SUFFIX);
+	}
+
+	/**
+	 * 计算文件开头一段数据的哈希
+	 *
+	 * @param file 文件
+	 * @param len  长度
+	 * @return Base64编码的哈希值，文件不足该长度时返回null
+	 */
+	static String prefixHash(File file, long len) throws IOException {
+		if (!file.isFile() || file.length() < len) {
+			return null;
+		}
+		MessageDigest messageDigest = newDigest();
+		try (FileInputStream input = new FileInputStream(file)) {
+			update(messageDigest, input, len);
+		}
+		return Base64.getEncoder().encodeToString(messageDigest.digest());
+	}
+
+	/**
+	 * 读取检查点并重新计算临时文件中已有数据的哈希，
+	 * 临时文件比检查点记录的长度短或内容与检查点不符时删除两者，视为没有检查点
+	 *
+	 * @return 是否存在可用的检查点
+	 */
+	boolean load() {
+		if (!checkpointFile.isFile()) {
+			return false;
+		}
+		try (DataInputStream input = new DataInputStream(new FileInputStream(checkpointFile))) {
+			long len = input.readLong();
+			String hash = input.readUTF();
+			if (len <= 0 || partFile.length() < len) {
+				Logger.warn("临时文件比检查点短，重新接收 " + target);
+				discard();
+				return false;
+			}
+			MessageDigest prefix = newDigest();
+			try (FileInputStream partInput = new FileInputStream(partFile)) {
+				update(prefix, partInput, len);
+			}
+			if (!Base64.getEncoder().encodeToString(cloneDigest(prefix).digest()).equals(hash)) {
+				Logger.warn("临时文件与检查点不符，重新接收 " + target);
+				discard();
+				return false;
+			}
+			checkpointOffset = len;
+			checkpointHash = hash;
+			digest = prefix;
+			return true;
+		} catch (IOException e) {
+			Logger.warn("检查点读取失败 " + checkpointFile);
+			discard();
+			return false;
+		}
+	}
+
+	long getCheckpointOffset() {
+		return checkpointOffset;
+	}
+
+	String getCheckpointHash() {
+		return checkpointHash;
+	}
+
+	/**
+	 * 从指定位置开始接收，之后的数据被丢弃。从头接收时旧的检查点作废
+	 *
+	 * @param start 开始位置，只能为0或 {@link #load()} 核对过的检查点位置
+	 */
+	void open(long start) throws IOException {
+		File parentDir = target.getParentFile();
+		if (!parentDir.exists() && !parentDir.mkdirs()) {
+			throw new IOException("目录创建失败 " + target.getParent());
+		}
+		if (start != 0 && start != checkpointOffset) {
+			throw new IOException("错误的续传位置 " + start);
+		}
+		if (start > 0) {
+			try (RandomAccessFile file = new RandomAccessFile(partFile, "rw")) {
+				file.setLength(start);
+			}
+		} else {
+			digest = newDigest();
+			checkpointFile.delete();
+		}
+		output = new FileOutputStream(partFile, start > 0);
+		offset = start;
+		savedOffset = start;
+	}
+
+	/**
+	 * 写入数据，定期记录检查点
+	 */
+	void write(byte[] buf, int off, int len) throws IOException {
+		output.write(buf, off, len);
+		digest.update(buf, off, len);
+		offset += len;
+		if (offset - savedOffset >= CHECKPOINT_INTERVAL) {
+			saveCheckpoint();
+		}
+	}
+
+	/**
+	 * 接收完毕，用临时文件替换目标文件
+	 *
+	 * @param mtime 目标文件的修改时间，0表示使用当前时间
+	 */
+	void commit(long mtime) throws IOException {
+		output.close();
+		output = null;
+		if (mtime > 0) {
+			partFile.setLastModified(mtime);
+		}
+		Files.move(partFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		checkpointFile.delete();
+	}
+
+	/**
+	 * 未提交时保留临时文件，并记录已经写入的位置
+	 */
+	@Override
+	public void close() throws IOException {
+		if (output == null) {
+			return;
+		}
+		try {
+			output.close();
+			output = null;
+		} finally {
+			if (offset > savedOffset) {
+				saveCheckpoint();
+			}
+		}
+	}
+
+	/**
+	 * 删除不可用的临时文件和检查点
+	 */
+	private void discard() {
+		partFile.delete();
+		checkpointFile.delete();
+	}
+
+	private void saveCheckpoint() throws IOException {
+		String hash = Base64.getEncoder().encodeToString(cloneDigest(digest).digest());
+		try (DataOutputStream checkpoint = new DataOutputStream(new FileOutputStream(checkpointFile))) {
+			checkpoint.writeLong(offset);
+			checkpoint.writeUTF(hash);
+		}
+		savedOffset = offset;
+	}
+
+	private static MessageDigest cloneDigest(MessageDigest digest) {
+		try {
+			return (MessageDigest) digest.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void update(MessageDigest messageDigest, InputStream input, long len) throws IOException {
+		byte[] buf = new byte[BUFFER_SIZE];
+		long remaining = len;
+		while (remaining > 0) {
+			int n = input.read(buf, 0, (int) Math.min(buf.length, remaining));
+			if (n == -1) {
+				throw new EOFException();
+			}
+			messageDigest.update(buf, 0, n);
+			remaining -= n;
+		}
+	}
+}
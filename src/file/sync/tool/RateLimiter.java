@@ -0,0 +1,130 @@
+/*
+ * Copyright © 2021 TongZhen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package file.sync.tool;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 令牌桶限速器
+ * <p>
+ * 令牌按速率持续补充，桶中最多积累 {@link #BURST_MILLIS} 的量，空闲之后可以突发发送。
+ * 发送前先扣除令牌，令牌不足时允许透支，发送方等到透支的部分补回后再发送，
+ * 因此一次发送多少数据都不会超过速率，后来的发送方排在透支之后。
+ * 会话的限速器挂在服务端的限速器之下，先按会话的速率等待再按服务端的速率等待，
+ * 同一会话的多个连接依次向服务端申请，每个会话同时只有一个申请在排队，
+ * 服务端的带宽由正在发送的会话轮流平均使用。速率可以随时调整，已经在等待的发送不受影响
+ *
+ * @author shouchen
+ */
+class RateLimiter {
+	/**
+	 * 桶容量，按速率可以发送的时长，毫秒
+	 */
+	private static final long BURST_MILLIS = 1000;
+	private static final double NANOS_PER_SECOND = 1e9;
+	private final RateLimiter parent;
+	private final Object turn;
+	private volatile long rate;
+	private double tokens;
+	private long lastRefill;
+
+	/**
+	 * @param rate   速率，字节每秒，0表示不限制
+	 * @param parent 上级限速器，没有时为null
+	 */
+	RateLimiter(long rate, RateLimiter parent) {
+		this.parent = parent;
+		this.turn = new Object();
+		this.lastRefill = System.nanoTime();
+		setRate(rate);
+		this.tokens = capacity();
+	}
+
+	/**
+	 * 调整速率，桶中的令牌不超过新的容量；从不限制改为限制时桶是满的，进行中的传输不会因此停顿
+	 *
+	 * @param rate 速率，字节每秒，0表示不限制
+	 */
+	synchronized void setRate(long rate) {
+		refill(System.nanoTime());
+		boolean unlimited = this.rate == 0;
+		this.rate = Math.max(rate, 0);
+		this.tokens = unlimited ? capacity() : Math.min(tokens, capacity());
+	}
+
+	long getRate() {
+		return rate;
+	}
+
+	/**
+	 * 发送前申请令牌，不足时等待
+	 *
+	 * @param bytes 将要发送的字节数
+	 * @throws InterruptedIOException 等待被中断
+	 */
+	void acquire(int bytes) throws InterruptedIOException {
+		if (parent == null) {
+			pause(reserve(bytes));
+			return;
+		}
+		if (rate == 0 && parent.rate == 0) {
+			return;
+		}
+		synchronized (turn) {
+			pause(reserve(bytes));
+			parent.acquire(bytes);
+		}
+	}
+
+	/**
+	 * 扣除令牌
+	 *
+	 * @return 需要等待的时间，纳秒
+	 */
+	private synchronized long reserve(int bytes) {
+		if (rate == 0) {
+			return 0;
+		}
+		refill(System.nanoTime());
+		tokens -= bytes;
+		return tokens >= 0 ? 0 : (long) (-tokens * NANOS_PER_SECOND / rate);
+	}
+
+	private void refill(long now) {
+		if (rate > 0) {
+			tokens = Math.min(capacity(), tokens + (now - lastRefill) * rate / NANOS_PER_SECOND);
+		}
+		lastRefill = now;
+	}
+
+	private double capacity() {
+		return (double) rate * BURST_MILLIS / 1000;
+	}
+
+	private static void pause(long nanos) throws InterruptedIOException {
+		if (nanos <= 0) {
+			return;
+		}
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+}
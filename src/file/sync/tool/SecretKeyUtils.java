@@ -17,8 +17,11 @@
 package file.sync.tool;
 
 import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Base64;
@@ -30,6 +33,8 @@ import java.util.Base64;
  */
 public class SecretKeyUtils {
 	public static final String ALGORITHM = "AES";
+	private static final String KDF_ALGORITHM = "HmacSHA256";
+	private static final byte[] SESSION_KEY_LABEL = "FileSyncTool session key".getBytes(StandardCharsets.UTF_8);
 
 	/**
 	 * 生成AES密钥
@@ -58,4 +63,25 @@ public class SecretKeyUtils {
 		byte[] keyData = Base64.getDecoder().decode(keyStr);
 		return new SecretKeySpec(keyData, ALGORITHM);
 	}
+
+	/**
+	 * 由共享密钥和双方的随机数派生会话密钥，每个连接的会话密钥都不相同
+	 *
+	 * @param key         共享密钥
+	 * @param clientNonce 客户端随机数
+	 * @param serverNonce 服务端随机数
+	 * @return 会话密钥
+	 */
+	public static SecretKey deriveSessionKey(SecretKey key, byte[] clientNonce, byte[] serverNonce) {
+		try {
+			Mac mac = Mac.getInstance(KDF_ALGORITHM);
+			mac.init(new SecretKeySpec(key.getEncoded(), KDF_ALGORITHM));
+			mac.update(SESSION_KEY_LABEL);
+			mac.update(clientNonce);
+			mac.update(serverNonce);
+			return new SecretKeySpec(mac.doFinal(), ALGORITHM);
+		} catch (NoSuchAlgorithmException | InvalidKeyException e) {
+			throw new IllegalStateException(e);
+		}
+	}
 }
@@ -0,0 +1,185 @@
+/*
+ * Copyright © 2021 TongZhen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package file.sync.tool;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 选择器引擎
+ * <p>
+ * 一个事件循环线程用选择器监听所有空闲连接，连接上有请求到达时从选择器注销，
+ * 切换为阻塞模式交给工作线程池处理，处理完已到达的请求并写出应答后再切换回非阻塞模式交还给选择器。
+ * 一个连接每轮最多连续处理 {@link #MAX_REQUESTS_PER_TURN} 个请求，之后还有已读入的请求时排到工作队列末尾，
+ * 持续发送请求的客户端不会一直占用工作线程。
+ * 请求的处理过程和线程引擎完全相同，大量空闲连接只占用选择器中的一个注册项而不占用线程
+ *
+ * @author shouchen
+ */
+class SelectorEngine {
+	private static final long SELECT_TIMEOUT = 1000;
+	/**
+	 * 每轮最多连续处理的请求数
+	 */
+	private static final int MAX_REQUESTS_PER_TURN = 16;
+	private static final int WORKER_SHUTDOWN_TIMEOUT = 5;
+	private final FileSyncServer server;
+	private final ServerSocketChannel serverChannel;
+	private final Selector selector;
+	private final ExecutorService workers;
+	private final ConcurrentLinkedQueue<ServerConnection> idleConnections;
+
+	/**
+	 * @param server        服务端
+	 * @param serverChannel 已绑定端口的监听通道
+	 * @param threads       工作线程数，所有连接共用一个事件循环线程
+	 * @throws IOException 选择器打开失败
+	 */
+	SelectorEngine(FileSyncServer server, ServerSocketChannel serverChannel, int threads) throws IOException {
+		this.server = server;
+		this.serverChannel = serverChannel;
+		this.selector = Selector.open();
+		AtomicInteger threadIds = new AtomicInteger();
+		this.workers = Executors.newFixedThreadPool(threads, runnable -> new Thread(runnable, "worker-" + threadIds.incrementAndGet()));
+		this.idleConnections = new ConcurrentLinkedQueue<>();
+	}
+
+	/**
+	 * 运行事件循环，直到服务端停止且所有连接都已关闭
+	 *
+	 * @throws IOException 选择器异常
+	 */
+	void run() throws IOException {
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		while (server.isRunning() || server.hasConnections()) {
+			ServerConnection connection;
+			while ((connection = idleConnections.poll()) != null) {
+				register(connection);
+			}
+			if (selector.selectedKeys().isEmpty()) {
+				selector.select(SELECT_TIMEOUT);
+			}
+			List<ServerConnection> ready = new ArrayList<>();
+			Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+			while (iterator.hasNext()) {
+				SelectionKey key = iterator.next();
+				iterator.remove();
+				if (!key.isValid()) {
+					continue;
+				}
+				if (key.isAcceptable()) {
+					accept();
+				} else if (key.isReadable()) {
+					key.cancel();
+					ready.add((ServerConnection) key.attachment());
+				}
+			}
+			if (!ready.isEmpty()) {
+				// 让取消的注册立即生效，通道才能切换为阻塞模式
+				selector.selectNow();
+				for (ServerConnection c : ready) {
+					dispatch(c);
+				}
+			}
+		}
+		selector.close();
+		workers.shutdown();
+		try {
+			workers.awaitTermination(WORKER_SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * 停止接受新连接，已有连接继续处理
+	 *
+	 * @throws IOException IO异常
+	 */
+	void stopAccepting() throws IOException {
+		serverChannel.close();
+		selector.wakeup();
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			ServerConnection connection = server.openConnection(channel.socket());
+			if (connection == null) {
+				continue;
+			}
+			channel.configureBlocking(false);
+			register(connection);
+		}
+	}
+
+	private void register(ServerConnection connection) {
+		try {
+			connection.getSocket().getChannel().register(selector, SelectionKey.OP_READ, connection);
+		} catch (ClosedChannelException e) {
+			server.closeConnection(connection);
+		}
+	}
+
+	private void dispatch(ServerConnection connection) {
+		try {
+			workers.execute(() -> serve(connection));
+		} catch (RejectedExecutionException e) {
+			server.closeConnection(connection);
+		}
+	}
+
+	/**
+	 * 在工作线程中处理连接上已到达的请求，然后写出应答并交还给选择器。
+	 * 达到每轮上限时已读入缓冲区的请求不会再触发选择器，重新排入工作队列
+	 */
+	private void serve(ServerConnection connection) {
+		SocketChannel channel = connection.getSocket().getChannel();
+		try {
+			channel.configureBlocking(true);
+			boolean open;
+			int requests = 0;
+			do {
+				open = connection.step();
+				requests++;
+			} while (open && requests < MAX_REQUESTS_PER_TURN && connection.hasPendingInput());
+			if (open && connection.flush()) {
+				if (connection.hasPendingInput()) {
+					dispatch(connection);
+					return;
+				}
+				channel.configureBlocking(false);
+				idleConnections.add(connection);
+				selector.wakeup();
+				return;
+			}
+		} catch (IOException e) {
+			Logger.error(e);
+		}
+		server.closeConnection(connection);
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright © 2021 TongZhen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package file.sync.tool;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * 服务端的一个连接
+ * <p>
+ * 连接的处理被拆分为多个步骤，每一步处理已经到达的一个请求：
+ * 第一步验证身份并确定连接是新会话的控制连接还是已有会话的数据连接，之后每一步处理一条命令。
+ * 线程引擎在同一个线程中连续执行所有步骤，选择器引擎在连接空闲时把它交还给选择器
+ *
+ * @author shouchen
+ */
+class ServerConnection {
+	private final FileSyncServer server;
+	private final FileSyncConfig config;
+	private final Socket socket;
+	private NetTransfer transfer;
+	private FileSyncSession session;
+	private boolean control;
+	private int sessionId;
+
+	ServerConnection(FileSyncServer server, FileSyncConfig config, Socket socket) {
+		this.server = server;
+		this.config = config;
+		this.socket = socket;
+	}
+
+	Socket getSocket() {
+		return socket;
+	}
+
+	/**
+	 * 处理连接上的下一个请求
+	 *
+	 * @return 连接是否继续
+	 */
+	boolean step() {
+		try {
+			if (session == null) {
+				return handshake();
+			}
+			return session.serveCommand(transfer);
+		} catch (IOException | BadPaddingException | IllegalBlockSizeException | ClassNotFoundException e) {
+			Logger.error(e);
+			return false;
+		}
+	}
+
+	/**
+	 * 是否还有已到达但未处理的请求
+	 *
+	 * @return 是否有请求
+	 */
+	boolean hasPendingInput() {
+		try {
+			return transfer != null && transfer.hasBufferedInput();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * 写出缓冲的应答
+	 *
+	 * @return 是否成功
+	 */
+	boolean flush() {
+		if (transfer == null) {
+			return true;
+		}
+		try {
+			transfer.flush();
+			return true;
+		} catch (IOException e) {
+			Logger.error(e);
+			return false;
+		}
+	}
+
+	/**
+	 * 结束连接，控制连接同时结束会话
+	 */
+	void close() {
+		flush();
+		if (control) {
+			session.finish();
+			server.releaseSession();
+			Logger.info("会话 " + sessionId + " 结束");
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			Logger.warn(e);
+		}
+	}
+
+	/**
+	 * 验证身份，再根据客户端的第一个命令开始新会话或者加入已有会话
+	 */
+	private boolean handshake() throws IOException, BadPaddingException, IllegalBlockSizeException, ClassNotFoundException {
+		transfer = new NetTransfer(socket.getInputStream(), socket.getOutputStream(), this.config.getSecretKey());
+		String clientHostName;
+		try {
+			clientHostName = transfer.checkIdentity();
+			transfer.sendInt(StatusCode.DONE);
+			transfer.sendIdentity();
+			transfer.acceptFeatures(NetTransfer.localFeatures(this.config));
+		} catch (IOException | BadPaddingException | IllegalBlockSizeException e) {
+			Logger.error("身份验证失败！" + socket.getRemoteSocketAddress());
+			transfer.sendInt(StatusCode.ERROR);
+			return false;
+		}
+		int status = transfer.getInt();
+		if (status == StatusCode.JOIN) {
+			session = server.findSession(transfer.getString());
+			if (session == null) {
+				Logger.warn("错误的会话令牌");
+				transfer.sendInt(StatusCode.ERROR);
+				return false;
+			}
+			transfer.setRateLimiter(session.getRateLimiter());
+			transfer.sendInt(StatusCode.DONE);
+			return true;
+		}
+		if (status != StatusCode.DONE) {
+			Logger.warn("客户端取消 " + socket.getRemoteSocketAddress());
+			return false;
+		}
+		if (!server.tryAcquireSession()) {
+			Logger.warn("会话数已满，拒绝客户端 " + clientHostName);
+			transfer.sendInt(StatusCode.ERROR);
+			return false;
+		}
+		sessionId = server.nextSessionId();
+		session = new FileSyncSession(server, this.config, transfer);
+		control = true;
+		Logger.info("会话 " + sessionId + " 开始，客户端 " + clientHostName + " " + socket.getRemoteSocketAddress());
+		transfer.sendInt(StatusCode.DONE);
+		session.setup();
+		return true;
+	}
+}
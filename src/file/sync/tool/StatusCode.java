@@ -40,14 +40,50 @@ public final class StatusCode {
 	 * 上传
 	 */
 	public static final int PUT = 5;
+	/**
+	 * 差量上传
+	 */
+	public static final int DELTA_PUT = 6;
+	/**
+	 * 打包上传
+	 */
+	public static final int BATCH_PUT = 7;
+	/**
+	 * 从检查点继续上传
+	 */
+	public static final int PUT_FROM = 8;
 	/**
 	 * 下载
 	 */
 	public static final int GET = 10;
+	/**
+	 * 差量下载
+	 */
+	public static final int DELTA_GET = 11;
+	/**
+	 * 打包下载
+	 */
+	public static final int BATCH_GET = 12;
+	/**
+	 * 从检查点继续下载
+	 */
+	public static final int GET_FROM = 13;
 	/**
 	 * 创建目录
 	 */
 	public static final int DIR = 21;
+	/**
+	 * 设置修改时间
+	 */
+	public static final int MTIME = 22;
+	/**
+	 * 建立数据连接
+	 */
+	public static final int CONNECT = 31;
+	/**
+	 * 数据连接加入会话
+	 */
+	public static final int JOIN = 32;
 	/**
 	 * 取消
 	 */
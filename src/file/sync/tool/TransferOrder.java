@@ -0,0 +1,111 @@
+/*
+ * Copyright © 2021 TongZhen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package file.sync.tool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 文件传输顺序
+ * <p>
+ * 先按优先级规则排序，排在前面的规则匹配的文件先传输，没有匹配任何规则的文件最后传输；
+ * 同一优先级内不超过小文件上限的文件先传输，更大的文件每大4倍为一级，小的级别先传输；
+ * 同一级别内新增文件在修改文件之前，其余按路径顺序。
+ * 大文件单独作为一条车道，有多个连接时由专门的连接传输，不会阻塞小文件
+ *
+ * @author shouchen
+ */
+class TransferOrder {
+	/**
+	 * 大小级别数，超出的都归入最后一级
+	 */
+	private static final int SIZE_CLASSES = 32;
+	private final List<IgnoreRules> priorities;
+	private final long smallFileSize;
+
+	/**
+	 * @param priorityList  优先级规则，写法与忽略规则相同，排在前面的优先
+	 * @param smallFileSize 小文件上限，字节，0表示不按大小排序
+	 */
+	TransferOrder(List<String> priorityList, long smallFileSize) {
+		this.priorities = new ArrayList<>(priorityList.size());
+		for (String rule : priorityList) {
+			priorities.add(new IgnoreRules(Collections.singletonList(rule)));
+		}
+		this.smallFileSize = smallFileSize;
+	}
+
+	/**
+	 * 是否按大小区分小文件和大文件
+	 *
+	 * @return 是否按大小排序
+	 */
+	boolean isSizeAware() {
+		return smallFileSize > 0;
+	}
+
+	/**
+	 * 是否属于小文件车道，大小未知的文件按大文件处理
+	 *
+	 * @param size 文件大小，未知时为负数
+	 * @return 是否为小文件
+	 */
+	boolean isSmall(long size) {
+		return smallFileSize <= 0 || size >= 0 && size <= smallFileSize;
+	}
+
+	/**
+	 * 计算排序键，键小的先传输
+	 *
+	 * @param path   相对路径
+	 * @param size   文件大小，未知时为负数
+	 * @param change 是否为修改的文件
+	 * @return 排序键
+	 */
+	long key(String path, long size, boolean change) {
+		return ((long) level(path) * SIZE_CLASSES + sizeClass(size)) * 2 + (change ? 1 : 0);
+	}
+
+	/**
+	 * @param key 排序键
+	 * @return 是否为修改的文件
+	 */
+	static boolean isChange(long key) {
+		return (key & 1) != 0;
+	}
+
+	private int level(String path) {
+		for (int i = 0; i < priorities.size(); i++) {
+			if (priorities.get(i).isExcluded(path, false)) {
+				return i;
+			}
+		}
+		return priorities.size();
+	}
+
+	private int sizeClass(long size) {
+		if (isSmall(size)) {
+			return 0;
+		}
+		if (size < 0) {
+			return 1;
+		}
+		int sizeClass = 1 + (63 - Long.numberOfLeadingZeros(size / smallFileSize)) / 2;
+		return Math.min(sizeClass, SIZE_CLASSES - 1);
+	}
+}
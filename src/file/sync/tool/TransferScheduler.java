@@ -0,0 +1,132 @@
+/*
+ * Copyright © 2021 TongZhen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package file.sync.tool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * 传输任务调度器
+ * <p>
+ * 任务从任务源按批次领取到各个连接自己的队列，连接从自己队列的头部取任务，
+ * 任务源取完且自己的队列空了以后依次从其他连接队列的尾部窃取，
+ * 同一时刻内存中只有少量任务。
+ * 可以有多条车道，每条车道一个任务源：连接数不少于车道数时第一条车道之外的每条车道各有一个专用连接，
+ * 其余连接都属于第一条车道，否则所有连接都属于第一条车道。
+ * 自己的车道取完后按顺序从其他车道领取，车道之间互不阻塞
+ *
+ * @author shouchen
+ */
+public class TransferScheduler<T> {
+	private static final int BATCH_SIZE = 64;
+	private final List<Source<T>> lanes;
+	private final boolean[] exhausted;
+	private final List<ConcurrentLinkedDeque<T>> queues;
+	private final int firstLaneWorkers;
+
+	/**
+	 * 任务源
+	 */
+	public interface Source<T> {
+		/**
+		 * 读取下一个任务
+		 *
+		 * @return 任务，没有更多任务时返回null
+		 * @throws IOException IO异常
+		 */
+		T next() throws IOException;
+	}
+
+	/**
+	 * @param source  任务源
+	 * @param workers 连接数
+	 */
+	public TransferScheduler(Source<T> source, int workers) {
+		this(Collections.singletonList(source), workers);
+	}
+
+	/**
+	 * @param lanes   各条车道的任务源
+	 * @param workers 连接数
+	 */
+	public TransferScheduler(List<Source<T>> lanes, int workers) {
+		this.lanes = lanes;
+		this.exhausted = new boolean[lanes.size()];
+		this.queues = new ArrayList<>(workers);
+		for (int i = 0; i < workers; i++) {
+			queues.add(new ConcurrentLinkedDeque<>());
+		}
+		this.firstLaneWorkers = workers >= lanes.size() ? workers - lanes.size() + 1 : workers;
+	}
+
+	/**
+	 * 获取下一个任务
+	 *
+	 * @param worker 连接编号
+	 * @return 任务，全部完成时返回null
+	 * @throws IOException 读取任务源失败
+	 */
+	public T next(int worker) throws IOException {
+		ConcurrentLinkedDeque<T> queue = queues.get(worker);
+		T task = queue.pollFirst();
+		int home = laneOf(worker);
+		if (task == null) {
+			task = refill(queue, home);
+		}
+		for (int lane = 0; task == null && lane < lanes.size(); lane++) {
+			if (lane != home) {
+				task = refill(queue, lane);
+			}
+		}
+		for (int i = 1; task == null && i < queues.size(); i++) {
+			task = queues.get((worker + i) % queues.size()).pollLast();
+		}
+		return task;
+	}
+
+	/**
+	 * 连接优先领取任务的车道
+	 *
+	 * @param worker 连接编号
+	 * @return 车道编号
+	 */
+	int laneOf(int worker) {
+		return worker < firstLaneWorkers ? 0 : worker - firstLaneWorkers + 1;
+	}
+
+	private synchronized T refill(ConcurrentLinkedDeque<T> queue, int lane) throws IOException {
+		if (exhausted[lane]) {
+			return null;
+		}
+		Source<T> source = lanes.get(lane);
+		T first = source.next();
+		for (int i = 1; first != null && i < BATCH_SIZE; i++) {
+			T task = source.next();
+			if (task == null) {
+				break;
+			}
+			queue.addLast(task);
+		}
+		if (first == null) {
+			exhausted[lane] = true;
+		}
+		return first;
+	}
+}